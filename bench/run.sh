@@ -0,0 +1,18 @@
+#!/bin/bash
+
+# Builds and runs the agent benchmarks headlessly, writing JMH's JSON results so
+# runs can be diffed for regressions. Extra arguments go straight to JMH, e.g.
+#   ./run.sh ProtocolBenchmark -p payloadSize=1024,1048576
+#   ./run.sh -lprof
+
+cd "$(dirname "$0")"
+
+mvn -B -q package || exit 1
+
+mkdir -p results
+RESULTS="results/bench-$(date +%Y%m%d-%H%M%S).json"
+
+java -Djava.awt.headless=true -jar target/benchmarks.jar -rf json -rff "$RESULTS" "$@" || exit 1
+
+echo ""
+echo "Results written to bench/$RESULTS"
@@ -0,0 +1,92 @@
+package ccc.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+/**
+ * Handles onto the agents' internals. The agents live in the default package, which
+ * a named package cannot import, and most of what is benchmarked is private, so
+ * everything goes through reflection once and MethodHandles afterwards.
+ */
+final class Agent {
+    static final PrintStream NULL_OUT = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+    
+    private Agent() {
+    }
+    
+    static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("agent class not on the classpath: " + name, e);
+        }
+    }
+    
+    static MethodHandle method(String className, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = type(className).getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(className + "." + name + " not found", e);
+        }
+    }
+    
+    static MethodHandle constructor(String className, Class<?>... parameterTypes) {
+        try {
+            Constructor<?> constructor = type(className).getDeclaredConstructor(parameterTypes);
+            constructor.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(constructor);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(className + " constructor not found", e);
+        }
+    }
+    
+    /** text as a JSON string literal, the way a coordinator would send it. */
+    static String json(String text) {
+        StringBuilder out = new StringBuilder(text.length() + 16).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        return out.append('"').toString();
+    }
+    
+    /**
+     * Clipboard-like text of exactly size chars: mostly ASCII code with the quotes,
+     * backslashes, newlines, tabs and non-ASCII characters that escaping has to handle.
+     */
+    static String text(int size) {
+        String line = "  const message = \"café \\\\ naïve\";\tfoo(bar[i], 'x'); // ✓\n";
+        StringBuilder text = new StringBuilder(size + line.length());
+        while (text.length() < size) {
+            text.append(line);
+        }
+        text.setLength(size);
+        return text.toString();
+    }
+}
@@ -0,0 +1,170 @@
+package ccc.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The whole agent engine in process on AgentCore.LoopbackBackend: each operation
+ * writes a command to the agent's input and waits for its responses on the output,
+ * so parsing, dispatch, the lanes, the watcher and response writing are all in the
+ * number while OS clipboard and input latency are not. FLOW is a full round trip
+ * against the loopback's echo peer, clicking every millisecond.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackAgentBenchmark {
+    private static final MethodHandle OPEN =
+        Agent.method("AgentCore", "open", String.class, InputStream.class, WritableByteChannel.class);
+    private static final MethodHandle SERVE = Agent.method("AgentCore", "serve",
+        Agent.type("AgentCore$ClipboardBackend"), Agent.type("AgentCore$InputBackend"));
+    private static final MethodHandle NEW_LOOPBACK = Agent.constructor("AgentCore$LoopbackBackend");
+    
+    @Param({"1024", "65536", "1048576", "10485760"})
+    public int payloadSize;
+    
+    private final CommandInput input = new CommandInput();
+    private final ResponseCounter output = new ResponseCounter();
+    private byte[] setClipboard;
+    private byte[] getClipboard;
+    private byte[] getUnchanged;
+    private byte[] flow;
+    private PrintStream stderr;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        String payload = Agent.text(payloadSize);
+        String escaped = Agent.json(payload);
+        setClipboard = command("{\"cmd\":\"SET_CLIPBOARD\",\"id\":\"c1\",\"data\":" + escaped + "}");
+        getClipboard = command("{\"cmd\":\"GET_CLIPBOARD\",\"id\":\"c2\"}");
+        getUnchanged = command("{\"cmd\":\"GET_CLIPBOARD\",\"id\":\"c3\",\"ifChanged\":\""
+            + payload.length() + "-" + Integer.toHexString(payload.hashCode()) + "\"}");
+        // No timestamp, so the request never goes stale however long the trial runs
+        String request = "{\"type\":\"CCC_REQUEST\",\"id\":\"r1\",\"action\":\"chat\",\"payload\":{\"content\":"
+            + escaped + "}}|||CCC_END|||";
+        flow = command("{\"cmd\":\"FLOW\",\"id\":\"c4\",\"requestId\":\"r1\",\"interval\":1,\"data\":"
+            + Agent.json(request) + "}");
+        
+        // The engine logs on stderr; keep the console out of the numbers
+        stderr = System.err;
+        System.setErr(Agent.NULL_OUT);
+        OPEN.invoke("Loopback Agent", (InputStream) input, (WritableByteChannel) output);
+        Object loopback = NEW_LOOPBACK.invoke();
+        Thread engine = new Thread(() -> {
+            try {
+                SERVE.invoke(loopback, loopback);
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }, "loopback-agent");
+        engine.setDaemon(true);
+        engine.start();
+        // Later benchmarks expect the payload to be on the clipboard already
+        roundTrip(setClipboard, 1);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setErr(stderr);
+    }
+    
+    @Benchmark
+    public void setClipboard() throws InterruptedException {
+        roundTrip(setClipboard, 1);
+    }
+    
+    @Benchmark
+    public void getClipboard() throws InterruptedException {
+        roundTrip(getClipboard, 1);
+    }
+    
+    // Conditional read of content the caller has already seen
+    @Benchmark
+    public void getClipboardUnchanged() throws InterruptedException {
+        roundTrip(getUnchanged, 1);
+    }
+    
+    // flow_started, then flow_complete once the echoed response is on the clipboard
+    @Benchmark
+    public void flow() throws InterruptedException {
+        roundTrip(flow, 2);
+    }
+    
+    private void roundTrip(byte[] command, int responses) throws InterruptedException {
+        input.commands.put(command);
+        output.responses.acquire(responses);
+    }
+    
+    private static byte[] command(String json) {
+        return (json + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+    
+    /** The agent's stdin: hands over whole commands as they are queued. */
+    static final class CommandInput extends InputStream {
+        final BlockingQueue<byte[]> commands = new LinkedBlockingQueue<>();
+        private byte[] current = new byte[0];
+        private int position;
+        
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position == current.length) {
+                try {
+                    current = commands.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+                position = 0;
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+    }
+    
+    /** The agent's stdout: counts responses, one per JSON line. */
+    static final class ResponseCounter implements WritableByteChannel {
+        final Semaphore responses = new Semaphore(0);
+        
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            int lines = 0;
+            for (int i = src.position(); i < src.limit(); i++) {
+                if (src.get(i) == '\n') lines++;
+            }
+            src.position(src.limit());
+            if (lines > 0) responses.release(lines);
+            return n;
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+        
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package ccc.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The per-command protocol work around a clipboard payload: decoding a SET_CLIPBOARD
+ * command, and scanning clipboard text for an envelope: a request whose checksum has to
+ * be verified, another request's response, and text that is no envelope at all.
+ * Response formatting is ResponseWriterBenchmark's.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmark {
+    private static final MethodHandle NEW_READER = Agent.constructor("AgentCore$CommandReader", InputStream.class);
+    private static final MethodHandle READ_COMMAND = Agent.method("AgentCore$CommandReader", "next");
+    private static final MethodHandle SCAN_ENVELOPE =
+        Agent.method("EnvelopeScanner", "scan", String.class, String.class, String.class, long.class);
+    
+    @Param({"1024", "65536", "1048576", "10485760"})
+    public int payloadSize;
+    
+    private String payload;
+    private byte[] setClipboardCommand;
+    private String requestEnvelope;
+    private String responseEnvelope;
+    private long now;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        payload = Agent.text(payloadSize);
+        String escaped = Agent.json(payload);
+        setClipboardCommand = ("{\"cmd\":\"SET_CLIPBOARD\",\"id\":\"c1\",\"data\":" + escaped + "}\n")
+            .getBytes(StandardCharsets.UTF_8);
+        // Same shape as the coordinator's CCC_REQUEST, with the payload after the id
+        now = System.currentTimeMillis();
+        String request = "{\"type\":\"CCC_REQUEST\",\"id\":\"0b7f6a52-3c1e-4d8a-9a57-2f4e8c1d9b30\","
+            + "\"timestamp\":" + now + ",\"action\":\"chat\",\"payload\":{\"content\":" + escaped + "}}";
+        requestEnvelope = request.substring(0, request.length() - 1)
+            + ",\"checksum\":\"sha256-" + sha256(request) + "\"}|||CCC_END|||";
+        responseEnvelope = "{\"type\":\"BROWSER_RESPONSE\",\"id\":\"5d2c9e1a-7b3f-4e6d-8c0a-1f9b2d4e6a81\","
+            + "\"timestamp\":" + now + ",\"status\":\"success\",\"payload\":{\"content\":" + escaped + "}}|||BROWSER_END|||";
+    }
+    
+    @Benchmark
+    public Object parseSetClipboard() throws Throwable {
+        Object reader = NEW_READER.invoke((InputStream) new ByteArrayInputStream(setClipboardCommand));
+        return READ_COMMAND.invoke(reader);
+    }
+    
+    // Finds the id and verifies the checksum over the whole payload
+    @Benchmark
+    public Object scanRequest() throws Throwable {
+        return SCAN_ENVELOPE.invoke(requestEnvelope, "CCC_REQUEST", (String) null, now);
+    }
+    
+    // A response for some other request, as seen while waiting for ours
+    @Benchmark
+    public Object scanForeignResponse() throws Throwable {
+        return SCAN_ENVELOPE.invoke(responseEnvelope, "BROWSER_RESPONSE", "0b7f6a52-3c1e-4d8a-9a57-2f4e8c1d9b30", now);
+    }
+    
+    // Ordinary clipboard content
+    @Benchmark
+    public Object scanPlainText() throws Throwable {
+        return SCAN_ENVELOPE.invoke(payload, "BROWSER_RESPONSE", (String) null, now);
+    }
+    
+    private static String sha256(String text) throws Exception {
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8))) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
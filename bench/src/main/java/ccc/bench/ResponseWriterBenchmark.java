@@ -0,0 +1,91 @@
+package ccc.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * AgentCore's response path end to end: from sendResponse handing a
+ * clipboard_content response to the writer thread until its last byte reaches the
+ * channel, in JSON-lines and framed mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseWriterBenchmark {
+    private static final String WRITER = "AgentCore$ResponseWriter";
+    private static final String HISTOGRAM = "AgentCore$LatencyHistogram";
+    private static final MethodHandle NEW_WRITER = Agent.constructor(WRITER,
+        WritableByteChannel.class, String.class, Agent.type(HISTOGRAM));
+    private static final MethodHandle NEW_HISTOGRAM = Agent.constructor(HISTOGRAM);
+    private static final MethodHandle SEND = Agent.method(WRITER, "send", String.class, String.class, String.class, String.class);
+    private static final MethodHandle SET_FRAMED = Agent.method(WRITER, "setFramed", boolean.class);
+    private static final MethodHandle CLOSE = Agent.method(WRITER, "close");
+    
+    @Param({"1024", "65536", "1048576", "10485760"})
+    public int payloadSize;
+    
+    @Param({"false", "true"})
+    public boolean framed;
+    
+    private final CountingChannel channel = new CountingChannel();
+    private Object writer;
+    private String payload;
+    private long responseBytes;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        payload = Agent.text(payloadSize);
+        writer = NEW_WRITER.invoke((WritableByteChannel) channel, "bench-output", NEW_HISTOGRAM.invoke());
+        SET_FRAMED.invoke(writer, framed);
+        // Every response is the same size (timestamps all have 13 digits), so measure one
+        SEND.invoke(writer, "clipboard_content", payload, (String) null, "c1");
+        long previous = -1;
+        while (channel.written.get() != previous || previous == 0) {
+            previous = channel.written.get();
+            Thread.sleep(20);
+        }
+        responseBytes = previous;
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        CLOSE.invoke(writer);
+    }
+    
+    @Benchmark
+    public void sendClipboardContent() throws Throwable {
+        long target = channel.written.get() + responseBytes;
+        SEND.invoke(writer, "clipboard_content", payload, (String) null, "c1");
+        while (channel.written.get() < target) {
+            Thread.yield();
+        }
+    }
+    
+    static final class CountingChannel implements WritableByteChannel {
+        final AtomicLong written = new AtomicLong();
+        
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            written.addAndGet(n);
+            return n;
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+        
+        @Override
+        public void close() {
+        }
+    }
+}
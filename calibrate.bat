@@ -35,7 +35,7 @@ REM Run the calibration tool
 echo Starting calibration tool...
 echo.
 cd tools
-java CalibrateButtons
+java CalibrateButtons %*
 cd ..
 
 echo.
@@ -45,7 +45,7 @@ echo ================================
 cd src\java-agent
 
 REM Clean up old files
-del /f /q agent.jar agent-headless.jar *.class manifest.txt 2>nul
+del /f /q agent.jar agent-headless.jar agent.jsa *.class manifest.txt 2>nul
 
 REM Compile main agent
 echo Compiling ClipboardAgent.java...
@@ -71,7 +71,7 @@ echo Main-Class: ClipboardAgent> manifest.txt
 
 REM Create main JAR
 echo Building agent.jar...
-jar cfm agent.jar manifest.txt ClipboardAgent.class
+jar cfm agent.jar manifest.txt ClipboardAgent.class ClipboardAgent$*.class AgentCore*.class EnvelopeScanner*.class
 if %errorlevel% neq 0 (
     echo ERROR: JAR creation failed for agent.jar
     cd ..\..
@@ -83,7 +83,7 @@ echo Main-Class: ClipboardAgentHeadless> manifest.txt
 
 REM Create headless JAR
 echo Building agent-headless.jar...
-jar cfm agent-headless.jar manifest.txt ClipboardAgentHeadless.class
+jar cfm agent-headless.jar manifest.txt ClipboardAgentHeadless.class ClipboardAgentHeadless$*.class AgentCore*.class EnvelopeScanner*.class
 if %errorlevel% neq 0 (
     echo ERROR: JAR creation failed for agent-headless.jar
     cd ..\..
@@ -95,6 +95,16 @@ del /f /q *.class manifest.txt
 
 echo SUCCESS: Java agents compiled successfully
 
+REM AppCDS archive for a faster agent start: a short scripted session (JDK 13+,
+REM skipped otherwise) records the classes it loads; the coordinator uses agent.jsa.
+REM It only maps for the absolute jar path it was made with
+del /f /q agent.jsa 2>nul
+java -XX:+PrintFlagsFinal -version 2>nul | findstr ArchiveClassesAtExit >nul
+if %errorlevel% equ 0 (
+    echo Building agent.jsa...
+    (echo {"cmd":"PING"}& echo {"cmd":"GET_CLIPBOARD"}& echo {"cmd":"SAVE_MOUSE"}& echo {"cmd":"STATS"}& ping -n 3 127.0.0.1 >nul) | java -XX:ArchiveClassesAtExit=agent.jsa -jar "%CD%\agent.jar" >nul 2>&1
+)
+
 cd ..\..
 
 echo.
@@ -59,7 +59,7 @@ echo "================================"
 cd src/java-agent
 
 # Clean up old files
-rm -f agent.jar agent-headless.jar ClipboardAgent*.class manifest.txt
+rm -f agent.jar agent-headless.jar ClipboardAgent*.class AgentCore*.class EnvelopeScanner*.class manifest.txt
 
 # Check if display is available
 if [ -z "$DISPLAY" ]; then
@@ -78,13 +78,13 @@ if [ -z "$DISPLAY" ]; then
     echo "Main-Class: ClipboardAgentHeadless" > manifest.txt
     
     # Create headless JAR
-    jar cfm agent-headless.jar manifest.txt ClipboardAgentHeadless.class
+    jar cfm agent-headless.jar manifest.txt ClipboardAgentHeadless.class 'ClipboardAgentHeadless$'*.class AgentCore*.class EnvelopeScanner*.class
     
     # Link as main agent.jar
     cp agent-headless.jar agent.jar
     
     # Clean up
-    rm -f ClipboardAgentHeadless.class manifest.txt
+    rm -f ClipboardAgentHeadless*.class AgentCore*.class EnvelopeScanner*.class manifest.txt
     
     echo -e "${GREEN}✓${NC} Headless Java agent compiled successfully"
 else
@@ -105,18 +105,21 @@ else
     
     # Create manifest for full JAR
     echo "Main-Class: ClipboardAgent" > manifest.txt
-    jar cfm agent.jar manifest.txt ClipboardAgent.class
+    jar cfm agent.jar manifest.txt ClipboardAgent.class 'ClipboardAgent$'*.class AgentCore*.class EnvelopeScanner*.class
     
     # Create manifest for headless JAR
     echo "Main-Class: ClipboardAgentHeadless" > manifest.txt
-    jar cfm agent-headless.jar manifest.txt ClipboardAgentHeadless.class
+    jar cfm agent-headless.jar manifest.txt ClipboardAgentHeadless.class 'ClipboardAgentHeadless$'*.class AgentCore*.class EnvelopeScanner*.class
     
     # Clean up
-    rm -f ClipboardAgent*.class manifest.txt
+    rm -f ClipboardAgent*.class AgentCore*.class EnvelopeScanner*.class manifest.txt
     
     echo -e "${GREEN}✓${NC} Both Java agents compiled successfully"
 fi
 
+# AppCDS archive (and with --jlink a trimmed runtime) for a faster agent start
+bash fast-start.sh "$@"
+
 cd ../..
 
 echo ""
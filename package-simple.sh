@@ -27,6 +27,18 @@ echo >> "$OUTPUT"
 echo "-~{END}~-" >> "$OUTPUT"
 echo >> "$OUTPUT"
 
+echo "-~{File: src/java-agent/AgentCore.java}~-" >> "$OUTPUT"
+to_windows_line_endings src/java-agent/AgentCore.java >> "$OUTPUT"
+echo >> "$OUTPUT"
+echo "-~{END}~-" >> "$OUTPUT"
+echo >> "$OUTPUT"
+
+echo "-~{File: src/java-agent/EnvelopeScanner.java}~-" >> "$OUTPUT"
+to_windows_line_endings src/java-agent/EnvelopeScanner.java >> "$OUTPUT"
+echo >> "$OUTPUT"
+echo "-~{END}~-" >> "$OUTPUT"
+echo >> "$OUTPUT"
+
 echo "-~{File: src/java-agent/StandaloneAgent.java}~-" >> "$OUTPUT"
 to_windows_line_endings src/java-agent/StandaloneAgent.java >> "$OUTPUT"
 echo >> "$OUTPUT"
@@ -110,6 +122,8 @@ echo ================================
 echo.
 echo Files extracted:
 echo - src/java-agent/ClipboardAgent.java
+echo - src/java-agent/AgentCore.java
+echo - src/java-agent/EnvelopeScanner.java
 echo - src/java-agent/StandaloneAgent.java  
 echo - src/browser-bridge/bridge-api.js
 echo - run-prod.bat
@@ -34,6 +34,18 @@ echo. >> "%OUTPUT%"
 echo -~{END}~->> "%OUTPUT%"
 echo. >> "%OUTPUT%"
 
+echo -~{File: src/java-agent/AgentCore.java}~->> "%OUTPUT%"
+type src\java-agent\AgentCore.java >> "%OUTPUT%"
+echo. >> "%OUTPUT%"
+echo -~{END}~->> "%OUTPUT%"
+echo. >> "%OUTPUT%"
+
+echo -~{File: src/java-agent/EnvelopeScanner.java}~->> "%OUTPUT%"
+type src\java-agent\EnvelopeScanner.java >> "%OUTPUT%"
+echo. >> "%OUTPUT%"
+echo -~{END}~->> "%OUTPUT%"
+echo. >> "%OUTPUT%"
+
 REM Package Node.js coordinator
 echo -~{File: src/node-server/coordinator-demo.js}~->> "%OUTPUT%"
 type src\node-server\coordinator-demo.js >> "%OUTPUT%"
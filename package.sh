@@ -35,6 +35,18 @@ echo >> "$OUTPUT"
 echo "-~{END}~-" >> "$OUTPUT"
 echo >> "$OUTPUT"
 
+echo "-~{File: src/java-agent/AgentCore.java}~-" >> "$OUTPUT"
+cat src/java-agent/AgentCore.java >> "$OUTPUT"
+echo >> "$OUTPUT"
+echo "-~{END}~-" >> "$OUTPUT"
+echo >> "$OUTPUT"
+
+echo "-~{File: src/java-agent/EnvelopeScanner.java}~-" >> "$OUTPUT"
+cat src/java-agent/EnvelopeScanner.java >> "$OUTPUT"
+echo >> "$OUTPUT"
+echo "-~{END}~-" >> "$OUTPUT"
+echo >> "$OUTPUT"
+
 # Package Node.js coordinator
 echo "-~{File: src/node-server/coordinator-demo.js}~-" >> "$OUTPUT"
 cat src/node-server/coordinator-demo.js >> "$OUTPUT"
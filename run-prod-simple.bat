@@ -6,14 +6,14 @@ echo.
 
 REM Compile Java agent
 echo Compiling Java agent...
-javac src\java-agent\ClipboardAgent.java
+javac src\java-agent\ClipboardAgent.java src\java-agent\AgentCore.java src\java-agent\EnvelopeScanner.java
 if errorlevel 1 (
     echo Java compilation failed!
     pause
     exit /b 1
 )
 
-jar cvf src\java-agent\agent.jar -C . src\java-agent\ClipboardAgent.class
+jar cvf src\java-agent\agent.jar -C . src\java-agent\ClipboardAgent.class src\java-agent\AgentCore.class src\java-agent\EnvelopeScanner.class
 if errorlevel 1 (
     echo JAR creation failed!
     pause
@@ -12,8 +12,8 @@ npm install
 :compile
 REM Compile Java agent
 echo Compiling Java agent...
-javac src/java-agent/ClipboardAgent.java
-jar cvf src/java-agent/agent.jar -C . src/java-agent/ClipboardAgent.class
+javac src/java-agent/ClipboardAgent.java src/java-agent/AgentCore.java src/java-agent/EnvelopeScanner.java
+jar cvf src/java-agent/agent.jar -C . src/java-agent/ClipboardAgent.class src/java-agent/AgentCore.class src/java-agent/EnvelopeScanner.class
 
 REM Copy bridge script to clipboard
 echo.
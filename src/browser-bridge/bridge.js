@@ -87,17 +87,11 @@
     }
   }
   
-  // Calculate checksum
-  function calculateChecksum(data) {
-    // Simple hash for demo (in production, use crypto.subtle.digest)
-    let hash = 0;
-    const str = JSON.stringify(data);
-    for (let i = 0; i < str.length; i++) {
-      const char = str.charCodeAt(i);
-      hash = ((hash << 5) - hash) + char;
-      hash = hash & hash;
-    }
-    return 'sha256-' + Math.abs(hash).toString(16);
+  // Calculate checksum (S3.1): SHA-256 of the message JSON, as the coordinator and agent compute it
+  async function calculateChecksum(data) {
+    const bytes = new TextEncoder().encode(JSON.stringify(data));
+    const digest = await crypto.subtle.digest('SHA-256', bytes);
+    return 'sha256-' + Array.from(new Uint8Array(digest), b => b.toString(16).padStart(2, '0')).join('');
   }
   
   // Handle click event
@@ -143,7 +137,7 @@
       // Validate checksum
       const expectedChecksum = request.checksum;
       delete request.checksum;
-      const actualChecksum = calculateChecksum(request);
+      const actualChecksum = await calculateChecksum(request);
       request.checksum = expectedChecksum;
       
       if (expectedChecksum !== actualChecksum) {
@@ -210,7 +204,7 @@
       payload: payload
     };
     
-    response.checksum = calculateChecksum(response);
+    response.checksum = await calculateChecksum(response);
     
     const responseText = JSON.stringify(response) + '|||BROWSER_END|||';
     await navigator.clipboard.writeText(responseText);
@@ -231,7 +225,7 @@
       }
     };
     
-    progress.checksum = calculateChecksum(progress);
+    progress.checksum = await calculateChecksum(progress);
     
     const progressText = JSON.stringify(progress) + '|||BROWSER_PROGRESS|||';
     await navigator.clipboard.writeText(progressText);
@@ -0,0 +1,3961 @@
+import java.awt.*;
+import java.awt.datatransfer.*;
+import java.awt.event.InputEvent;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The agent's protocol engine, shared by every entry point: the command reader and
+ * dispatch, the lanes, click scheduling, FLOW, the clipboard watcher, transport,
+ * metrics and the response writer. Where the clipboard lives and where clicks go is
+ * left to a ClipboardBackend and an InputBackend, so each agent is a thin
+ * configuration of this core:
+ *
+ *   ClipboardAgent          AwtBackend: the system clipboard and a Robot
+ *   ClipboardAgentHeadless  SimulatedBackend: a scripted browser bridge, or
+ *                           LoopbackBackend with --loopback
+ *   StandaloneAgent         AwtBackend for its scripted demo
+ *
+ * LoopbackBackend keeps everything in process, so benchmarks can drive the engine at
+ * memory speed, apart from OS clipboard and input latency.
+ *
+ * Commands come from stdin (serve) or, with --daemon, from any number of loopback TCP
+ * sessions (serveDaemon); either way they share one set of backends and lanes.
+ */
+final class AgentCore {
+    private static final int DEFAULT_CLICK_INTERVAL = 100;
+    private static final int DEFAULT_CLICK_DURATION = 30000;
+    private static final int DEFAULT_HOLD_TIME = 80;
+    private static final int DEFAULT_FLOW_TIMEOUT = 30000;
+    private static final int DEFAULT_READ_PHASE = 2000;
+    // Parking is only accurate to a millisecond or so; the last stretch before a click is spun
+    private static final long SPIN_THRESHOLD_NANOS = TimeUnit.MICROSECONDS.toNanos(1500);
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    // RESTORE_MOUSE has no timeout of its own; it waits for clicking that has one
+    private static final long NO_TIMEOUT = TimeUnit.DAYS.toNanos(1);
+    static final int DEFAULT_DAEMON_PORT = 5557;
+    private static final int DEFAULT_QUEUE_LIMIT = 64;
+    private static final int DEFAULT_CLIPBOARD_RETRY = 1000;
+    // A clipboard held open by another application: retries yield this many times, then back off
+    private static final int CLIPBOARD_SPINS = 3;
+    private static final long MAX_CLIPBOARD_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(32);
+    
+    private static String name = "Agent";
+    private static ClipboardBackend clipboard;
+    private static InputBackend input;
+    // Text SAVE_CLIPBOARD took, for RESTORE_CLIPBOARD; both run on the clipboard lane
+    private static String savedClipboard = "";
+    private static Point savedMousePosition = new Point(0, 0);
+    private static volatile Consumer<String> statusListener;
+    // Commands an entry point adds on top of the protocol, e.g. the headless CONFIGURE_BRIDGE
+    private static final Map<String, Consumer<Map<String, Object>>> extraCommands = new ConcurrentHashMap<>();
+    private static CommandQueue clipboardLane;
+    private static ExecutorService statusLane;
+    // SET_STATUS message the status lane has yet to show; a newer one replaces it
+    private static final AtomicReference<String> pendingStatus = new AtomicReference<>();
+    private static Tasks tasks;
+    // Work each of the clipboard lane and the clicking tasks may hold before commands are refused
+    private static volatile int queueLimit = Integer.getInteger("ccc.queueLimit", DEFAULT_QUEUE_LIMIT);
+    // How long a clipboard access keeps retrying while another application holds the clipboard
+    private static volatile int clipboardRetryMs = Integer.getInteger("ccc.clipboardRetryMs", DEFAULT_CLIPBOARD_RETRY);
+    // Id of the command being handled on this thread, echoed in every response it produces
+    private static final ThreadLocal<String> commandId = new ThreadLocal<>();
+    // Daemon session the command being handled on this thread came from; null for stdin
+    private static final ThreadLocal<ResponseWriter> commandOutput = new ThreadLocal<>();
+    // Dispatch of the command being handled on this thread, for its latency histogram
+    private static final ThreadLocal<CommandTiming> commandTiming = new ThreadLocal<>();
+    // Commands merged into the one being handled on this thread; they get its responses too
+    private static final ThreadLocal<java.util.List<Caller>> commandRiders = new ThreadLocal<>();
+    private static final Metrics metrics = new Metrics();
+    private static final ButtonGate buttons = new ButtonGate();
+    private static final Calibration calibration = new Calibration();
+    private static ClipboardWatcher watcher;
+    private static final ClipboardTransport transport = new ClipboardTransport();
+    // Framing is negotiated with SET_FRAMING; both directions start as JSON lines
+    private static ResponseWriter output;
+    private static long openNanos;
+    private static InputStream commandInput;
+    private static CommandReader commandReader;
+    private static volatile boolean framedInput = false;
+    
+    private AgentCore() {
+    }
+    
+    /**
+     * Starts the protocol on in/out, before any backend exists, so that even a backend
+     * that fails to start can be reported as a response. Responses still queued when the
+     * JVM exits are written out first.
+     */
+    static void open(String agentName, InputStream in, WritableByteChannel out) {
+        openNanos = System.nanoTime();
+        name = agentName;
+        commandInput = in;
+        output = new ResponseWriter(out, "ccc-output", metrics.output);
+        Runtime.getRuntime().addShutdownHook(new Thread(output::close, "ccc-output-flush"));
+        metrics.dumpEvery(Long.getLong("ccc.statsInterval", 0));
+    }
+    
+    /** open() on stdin and stdout. */
+    static void openStdio(String agentName) {
+        open(agentName, System.in, new FileOutputStream(FileDescriptor.out).getChannel());
+    }
+    
+    /** Reports a fatal error as a response and exits. */
+    static void fail(String message) {
+        sendError(message);
+        System.exit(1);
+    }
+    
+    /** Called with each SET_STATUS message, e.g. to update a tray icon. */
+    static void onStatus(Consumer<String> listener) {
+        statusListener = listener;
+    }
+    
+    /** Adds a command on top of the protocol; the handler runs inline on the reader thread. */
+    static void addCommand(String command, Consumer<Map<String, Object>> handler) {
+        extraCommands.put(command, handler);
+    }
+    
+    /**
+     * Serves commands from the opened input with the given backends until the input ends.
+     * Announces ready, with the milliseconds since open(), once commands are being read,
+     * which can be before the backends have finished starting.
+     */
+    static void serve(ClipboardBackend clipboardBackend, InputBackend inputBackend) {
+        try {
+            start(clipboardBackend, inputBackend);
+            // Built by hand: a Formatter, or a concat shape not yet linked, costs more startup
+            // time than it reports
+            long tenths = (System.nanoTime() - openNanos) / 100_000;
+            sendResponse("ready", name, new StringBuilder("\"startupMs\":").append(tenths / 10).append('.')
+                .append(tenths % 10).toString());
+            
+            // Process commands; JSON lines and frames feed the same dispatch
+            CommandReader reader = new CommandReader(commandInput);
+            commandReader = reader;
+            while (true) {
+                Map<String, Object> cmd;
+                long parseStart = System.nanoTime();
+                long blockedBefore = reader.blockedNanos;
+                try {
+                    cmd = framedInput ? reader.nextFrame() : reader.next();
+                } catch (IllegalArgumentException e) {
+                    sendError("Invalid command: " + e.getMessage());
+                    if (!framedInput) {
+                        reader.skipLine();
+                    } else if (reader.lostSync()) {
+                        // Everything after it would be read from the wrong offset
+                        fail("Framed input lost sync: " + e.getMessage());
+                    }
+                    continue;
+                }
+                if (cmd == null) break;
+                metrics.parse.record(System.nanoTime() - parseStart - (reader.blockedNanos - blockedBefore));
+                processCommand(cmd);
+            }
+            
+        } catch (Exception e) {
+            fail("Initialization failed: " + e.getMessage());
+        }
+    }
+    
+    /** The port following --daemon in args, DEFAULT_DAEMON_PORT if none is given, or -1 without --daemon. */
+    static int daemonPort(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (!"--daemon".equals(args[i])) continue;
+            return i + 1 < args.length && args[i + 1].matches("\\d+") ? Integer.parseInt(args[i + 1]) : DEFAULT_DAEMON_PORT;
+        }
+        return -1;
+    }
+    
+    /**
+     * Serves commands from loopback TCP connections on port (0 picks a free one) until the
+     * process is stopped, instead of from stdin. The port is announced on stdout as
+     * daemon_listening; stdout otherwise only carries fatal errors.
+     */
+    static void serveDaemon(ClipboardBackend clipboardBackend, InputBackend inputBackend, int port) {
+        Daemon daemon;
+        try {
+            start(clipboardBackend, inputBackend);
+            daemon = new Daemon(port);
+        } catch (Exception e) {
+            fail("Initialization failed: " + e.getMessage());
+            return;
+        }
+        sendResponse("daemon_listening", String.valueOf(daemon.port()));
+        log("Listening on 127.0.0.1:" + daemon.port());
+        try {
+            daemon.run();
+        } catch (IOException e) {
+            fail("Daemon failed: " + e.getMessage());
+        }
+    }
+    
+    private static void start(ClipboardBackend clipboardBackend, InputBackend inputBackend) {
+        clipboard = clipboardBackend;
+        input = inputBackend;
+        // Clipboard transfers get their own lane so a large copy never holds up the main
+        // loop; clicking runs as tasks that take turns on the input lane
+        clipboardLane = new CommandQueue("ccc-clipboard");
+        statusLane = newLane("ccc-status", Thread.MIN_PRIORITY);
+        tasks = new Tasks();
+        watcher = new ClipboardWatcher(clipboard);
+        watcher.start();
+    }
+    
+    /**
+     * Dispatches one command. Commands may carry an "id", which is echoed in every
+     * response they produce, including the completion events of long-running work.
+     *
+     * Quick commands run inline on the reader thread and clipboard transfers in order on
+     * the clipboard lane. Clicking commands run as concurrent tasks (see Tasks) whose
+     * input is serialized on the input lane. Responses to pipelined commands can
+     * therefore arrive out of order; callers match them up by id. Neither the lane nor
+     * the tasks take more than queueLimit commands: the rest are refused with busy,
+     * never blocking the reader, so STOP_CLICKING is always handled as it arrives.
+     */
+    private static void processCommand(Map<String, Object> cmd) {
+        Object id = cmd.get("id");
+        commandId.set(id != null ? id.toString() : null);
+        CommandTiming timing = new CommandTiming((String) cmd.get("cmd"));
+        commandTiming.set(timing);
+        try {
+            String command = timing.command;
+            
+            switch (command) {
+                case "SAVE_CLIPBOARD":
+                    clipboardLane.submit(null, AgentCore::saveClipboard);
+                    break;
+                    
+                case "RESTORE_CLIPBOARD":
+                    clipboardLane.submit(null, AgentCore::restoreClipboard);
+                    break;
+                    
+                case "SET_CLIPBOARD":
+                    String data = (String) cmd.get("data");
+                    clipboardLane.submit(null, () -> setClipboard(data));
+                    break;
+                    
+                case "GET_CLIPBOARD":
+                    String ifChanged = (String) cmd.get("ifChanged");
+                    // Back-to-back reads are answered by one
+                    clipboardLane.submit("GET_CLIPBOARD " + ifChanged, () -> getClipboard(ifChanged));
+                    break;
+                    
+                case "SET_CLIPBOARD_FROM_FILE":
+                    Map<String, Object> source = cmd;
+                    clipboardLane.submit(null, () -> setClipboardFromFile(source));
+                    break;
+                    
+                case "GET_CLIPBOARD_TO_FILE":
+                    String target = (String) cmd.get("path");
+                    long targetOffset = parseLong(cmd.get("offset"));
+                    clipboardLane.submit(null, () -> getClipboardToFile(target, targetOffset));
+                    break;
+                    
+                case "SAVE_MOUSE":
+                    saveMousePosition();
+                    break;
+                    
+                case "GET_MOUSE":
+                    getMousePosition();
+                    break;
+                    
+                case "RESTORE_MOUSE":
+                    restoreMousePosition();
+                    break;
+                    
+                case "CLICK_LOOP":
+                    startClickLoop(
+                        parseInt(cmd.get("x")),
+                        parseInt(cmd.get("y")),
+                        parseInt(cmd.get("interval")),
+                        parseInt(cmd.get("maxDuration")),
+                        parseInt(cmd.get("hold")),
+                        (String) cmd.get("until"),
+                        (String) cmd.get("button")
+                    );
+                    break;
+                    
+                case "FLOW":
+                    startFlow(
+                        flowData(cmd),
+                        (String) cmd.get("requestId"),
+                        point(cmd, "readX", "readY"),
+                        point(cmd, "writeX", "writeY"),
+                        parseInt(cmd.get("interval")),
+                        parseInt(cmd.get("hold")),
+                        parseInt(cmd.get("readTimeout")),
+                        parseInt(cmd.get("timeout")),
+                        (String) cmd.get("responseFile"),
+                        Boolean.TRUE.equals(cmd.get("stream"))
+                    );
+                    break;
+                    
+                case "STOP_CLICKING":
+                    stopClicking();
+                    break;
+                    
+                case "CALIBRATE":
+                    calibrate(point(cmd, "readX", "readY"), point(cmd, "writeX", "writeY"));
+                    break;
+                    
+                case "GET_CALIBRATION":
+                    sendResponse("calibration", null, calibration.describe());
+                    break;
+                    
+                case "SET_STATUS":
+                    setStatus((String) cmd.get("message"));
+                    break;
+                    
+                case "SUBSCRIBE_CLIPBOARD":
+                    watcher.subscribe((String) cmd.get("match"), parseInt(cmd.get("pollInterval")), (String) cmd.get("stream"));
+                    sendResponse("clipboard_subscribed", (String) cmd.get("match"));
+                    break;
+                    
+                case "UNSUBSCRIBE_CLIPBOARD":
+                    watcher.unsubscribe();
+                    sendResponse("clipboard_unsubscribed", null);
+                    break;
+                    
+                case "SET_FRAMING":
+                    setFraming((String) cmd.get("mode"));
+                    break;
+                    
+                case "CONFIGURE":
+                    configure(cmd);
+                    break;
+                    
+                case "STATS":
+                    sendResponse("stats", null, metrics.toJson());
+                    if (Boolean.TRUE.equals(cmd.get("reset"))) metrics.reset();
+                    break;
+                    
+                case "PING":
+                    sendResponse("pong", null);
+                    break;
+                    
+                default:
+                    Consumer<Map<String, Object>> handler = extraCommands.get(command);
+                    if (handler != null) {
+                        handler.accept(cmd);
+                        break;
+                    }
+                    timing.command = "UNKNOWN";
+                    sendError("Unknown command: " + command);
+            }
+            
+        } catch (Exception e) {
+            sendError("Command processing failed: " + e.getMessage());
+        } finally {
+            commandId.remove();
+            commandTiming.remove();
+            if (!timing.queued) timing.finish();
+        }
+    }
+    
+    private static ExecutorService newLane(String name, int priority) {
+        return Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            thread.setPriority(priority);
+            return thread;
+        });
+    }
+    
+    /**
+     * Pushes back on a command that found limit commands ahead of it: busy, with how many
+     * there are and retryAfterMs, the median time such a command has taken to complete.
+     */
+    private static void refuse(int queued, int limit) {
+        CommandTiming timing = commandTiming.get();
+        String command = timing != null ? timing.command : "UNKNOWN";
+        long retryAfterMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(metrics.command(command).percentile(0.5)));
+        metrics.refused.incrementAndGet();
+        sendResponse("busy", command, "\"queued\":" + queued + ",\"limit\":" + limit + ",\"retryAfterMs\":" + retryAfterMs);
+    }
+    
+    private static void saveClipboard() {
+        try {
+            savedClipboard = readClipboardText();
+            sendResponse("clipboard_saved", savedClipboard.isEmpty() ? "empty" : savedClipboard.length() + " chars");
+        } catch (Exception e) {
+            sendFailure("Failed to save clipboard: ", e);
+        }
+    }
+    
+    private static void restoreClipboard() {
+        try {
+            watcher.setContents(savedClipboard);
+            sendResponse("clipboard_restored", savedClipboard.length() + " chars");
+        } catch (Exception e) {
+            sendFailure("Failed to restore clipboard: ", e);
+        }
+    }
+    
+    private static void setClipboard(String data) {
+        try {
+            watcher.setContents(data);
+            sendResponse("clipboard_set", data.length() + " chars");
+        } catch (Exception e) {
+            sendFailure("Failed to set clipboard: ", e);
+        }
+    }
+    
+    /**
+     * Replies clipboard_content with the text and its fingerprint, or just
+     * clipboard_unchanged if the fingerprint equals ifChanged, so polling a large,
+     * stale clipboard costs a few bytes per check instead of the whole text.
+     */
+    private static void getClipboard(String ifChanged) {
+        try {
+            // While we own the clipboard it still holds what we wrote; no need to read it
+            String owned = watcher.ownedFingerprint();
+            if (owned != null && owned.equals(ifChanged)) {
+                sendResponse("clipboard_unchanged", null, "\"fingerprint\":\"" + owned + "\"");
+                return;
+            }
+            String text = readClipboardText();
+            String fingerprint = fingerprint(text.length(), text.hashCode());
+            if (fingerprint.equals(ifChanged)) {
+                sendResponse("clipboard_unchanged", null, "\"fingerprint\":\"" + fingerprint + "\"");
+            } else {
+                sendResponse("clipboard_content", text, "\"fingerprint\":\"" + fingerprint + "\"");
+            }
+        } catch (Exception e) {
+            sendFailure("Failed to get clipboard: ", e);
+        }
+    }
+    
+    // Content fingerprint for conditional reads: UTF-16 length and String.hashCode
+    private static String fingerprint(int length, int hash) {
+        return length + "-" + Integer.toHexString(hash);
+    }
+    
+    // {"path", "offset", "length", "checksum"}: the region of a file holding UTF-8 text
+    private static ByteBuffer readFileRegion(Map<String, Object> region) throws IOException {
+        String path = (String) region.get("path");
+        if (path == null) throw new IOException("missing path");
+        return MappedPayload.readBytes(path, parseLong(region.get("offset")),
+            region.containsKey("length") ? parseLong(region.get("length")) : -1, (String) region.get("checksum"));
+    }
+    
+    // The text stays as the file's UTF-8 until something pastes it
+    private static void setClipboardFromFile(Map<String, Object> region) {
+        try {
+            ClipboardText data = ClipboardText.ofUtf8(readFileRegion(region));
+            watcher.setContents(data);
+            sendResponse("clipboard_set", data.length() + " chars");
+        } catch (Exception e) {
+            sendFailure("Failed to set clipboard from file: ", e);
+        }
+    }
+    
+    // Streamed into the file, so the text is never held whole on the way
+    private static void getClipboardToFile(String path, long offset) {
+        try {
+            if (path == null) throw new IOException("missing path");
+            String written;
+            try (InputStream text = readClipboardUtf8()) {
+                written = MappedPayload.write(path, offset, text);
+            }
+            sendResponse("clipboard_file", null, written);
+        } catch (Exception e) {
+            sendFailure("Failed to write clipboard to file: ", e);
+        }
+    }
+    
+    // FLOW request text comes inline as "data" or, for oversized requests, from "dataFile"
+    @SuppressWarnings("unchecked")
+    private static String flowData(Map<String, Object> cmd) throws IOException {
+        Object file = cmd.get("dataFile");
+        return file instanceof Map
+            ? ClipboardText.decoder().decode(readFileRegion((Map<String, Object>) file)).toString()
+            : (String) cmd.get("data");
+    }
+    
+    // Returns the clipboard text, or "" if it holds something else
+    private static String readClipboardText() throws Exception {
+        return accessClipboard(clipboard::read);
+    }
+    
+    // As readClipboardText, as a UTF-8 stream; the clipboard time covers opening it
+    private static InputStream readClipboardUtf8() throws Exception {
+        return accessClipboard(clipboard::readUtf8);
+    }
+    
+    /**
+     * Runs one clipboard read or write, retrying while another application has the
+     * clipboard open (the backend throws IllegalStateException). The first few retries
+     * only yield, since most such locks last microseconds; then the waits double from a
+     * millisecond up to 32ms, until clipboardRetryMs have passed and it gives up with
+     * ClipboardBusyException. Every refused attempt counts as clipboardBusy, a call that
+     * got through on a retry as clipboardRetried, one that gave up as clipboardGaveUp,
+     * and either one's time spent waiting goes into the contention phase.
+     */
+    private static <T> T accessClipboard(Callable<T> access) throws Exception {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(clipboardRetryMs);
+        int attempts = 0;
+        try {
+            while (true) {
+                try {
+                    T result = access.call();
+                    if (attempts > 0) {
+                        metrics.clipboardRetried.incrementAndGet();
+                        metrics.contention.record(System.nanoTime() - start);
+                    }
+                    return result;
+                } catch (IllegalStateException e) {
+                    metrics.clipboardBusy.incrementAndGet();
+                    attempts++;
+                    long now = System.nanoTime();
+                    if (now - deadline >= 0) {
+                        metrics.clipboardGaveUp.incrementAndGet();
+                        metrics.contention.record(now - start);
+                        throw new ClipboardBusyException(attempts, now - start, e);
+                    }
+                    if (attempts <= CLIPBOARD_SPINS) {
+                        Thread.yield();
+                    } else {
+                        long backoff = Math.min(TimeUnit.MILLISECONDS.toNanos(1) << Math.min(attempts - CLIPBOARD_SPINS - 1, 10),
+                            MAX_CLIPBOARD_BACKOFF_NANOS);
+                        LockSupport.parkNanos(Math.min(backoff, deadline - now));
+                    }
+                }
+            }
+        } finally {
+            metrics.clipboard.record(System.nanoTime() - start);
+        }
+    }
+    
+    /** The clipboard stayed locked by another application for the whole retry window. */
+    static final class ClipboardBusyException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+        
+        ClipboardBusyException(int attempts, long waitedNanos, IllegalStateException last) {
+            super(String.format(Locale.ROOT, "clipboard busy: %d attempts over %dms (%s)",
+                attempts, TimeUnit.NANOSECONDS.toMillis(waitedNanos), last.getMessage()), last);
+        }
+    }
+    
+    /**
+     * Reports a failed command. A clipboard that stayed busy is flagged as such, with
+     * retryAfterMs, the median time contended accesses have waited, when retrying the
+     * command is safe; otherwise the caller would only learn of it by timing out.
+     */
+    private static void sendFailure(String message, Exception e) {
+        sendFailure(message, e, true);
+    }
+    
+    private static void sendFailure(String message, Exception e, boolean retryable) {
+        if (!(e instanceof ClipboardBusyException)) {
+            sendError(message + e.getMessage());
+            return;
+        }
+        String fields = "\"clipboardBusy\":true";
+        if (retryable) {
+            long retryAfterMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(metrics.contention.percentile(0.5)));
+            fields += ",\"retryAfterMs\":" + retryAfterMs;
+        }
+        sendError(message + e.getMessage(), fields);
+    }
+    
+    private static void saveMousePosition() {
+        savedMousePosition = input.position();
+        sendResponse("mouse_saved", savedMousePosition.x + "," + savedMousePosition.y);
+    }
+    
+    private static void getMousePosition() {
+        Point currentPos = input.position();
+        sendResponse("mouse_position", currentPos.x + "," + currentPos.y);
+    }
+    
+    // Waits for the clicking dispatched before it, so the cursor is not pulled away mid-loop
+    private static void restoreMousePosition() {
+        java.util.List<Task> before = tasks.snapshot();
+        tasks.start(false, NO_TIMEOUT, task -> {
+            for (Task earlier : before) {
+                if (!task.await(earlier)) return;
+            }
+            task.begin();
+            if (!task.acquire(tasks.inputLane, task.deadline)) return;
+            try {
+                long start = System.nanoTime();
+                input.move(savedMousePosition.x, savedMousePosition.y);
+                metrics.robot.record(System.nanoTime() - start);
+            } finally {
+                tasks.inputLane.unlock();
+            }
+            sendResponse("mouse_restored", savedMousePosition.x + "," + savedMousePosition.y);
+        });
+    }
+    
+    /**
+     * Clicks (x, y) every interval ms in a task until STOP_CLICKING, maxDuration,
+     * or the optional until condition: "clipboard_changed" (another application wrote the
+     * clipboard) or "request_consumed" (the bridge replaced the request we put there).
+     * button names the target for pixel-state gating; it defaults to "x,y".
+     */
+    private static void startClickLoop(int x, int y, int interval, int maxDuration, int hold, String until, String button) {
+        final long intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval > 0 ? interval : DEFAULT_CLICK_INTERVAL);
+        final long durationNanos = TimeUnit.MILLISECONDS.toNanos(maxDuration > 0 ? maxDuration : DEFAULT_CLICK_DURATION);
+        // Never hold for more than half the interval, or the release eats into the next click
+        final long holdNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(hold > 0 ? hold : DEFAULT_HOLD_TIME), intervalNanos / 2);
+        final boolean untilChanged = "clipboard_changed".equals(until);
+        final boolean untilConsumed = "request_consumed".equals(until);
+        if (until != null && !untilChanged && !untilConsumed) {
+            sendError("Unknown click loop condition: " + until);
+            return;
+        }
+        
+        boolean started = tasks.start(true, durationNanos, task -> {
+            task.begin();
+            if (untilChanged) watcher.addWaiter();
+            try {
+                long changeCount = watcher.changeCount();
+                ClickStats stats = runClicks(task, button != null ? button : x + "," + y, x, y,
+                    intervalNanos, holdNanos, task.deadline, () -> {
+                    if (untilChanged && watcher.changeCount() != changeCount) return "clipboard_changed";
+                    if (untilConsumed && !watcher.ownsClipboard()) return "request_consumed";
+                    return null;
+                });
+                sendResponse("click_loop_complete", stats.clicks + " clicks", stats.toJson());
+                
+            } catch (Exception e) {
+                sendError("Click loop failed: " + e.getMessage());
+            } finally {
+                if (untilChanged) watcher.removeWaiter();
+            }
+        });
+        
+        if (started) sendResponse("click_loop_started", x + "," + y);
+    }
+    
+    /**
+     * Runs one request round-trip in a task: save the clipboard, put the request
+     * on it, click READ until the bridge consumes it (or readTimeout passes, for bridges that
+     * don't acknowledge), click WRITE until a BROWSER_RESPONSE appears, then restore.
+     * With a button palette configured, clicks wait for the button to show ready.
+     * Without read/write points the saved calibration is used, checked first (see Calibration).
+     * With stream, the bridge's BROWSER_PROGRESS for requestId is forwarded as clipboard_delta
+     * events while WRITE waits (see DeltaStream).
+     *
+     * Each stage ends on the watcher's signal rather than a fixed delay, so the coordinator
+     * sends one command instead of ~20 and no wall-clock padding sits on the critical path.
+     * Replies flow_complete with the response text, or flow_timeout; both carry stage timings.
+     * FLOWs own the clipboard from save to restore, so they take turns; the wait for a turn
+     * is reported as queuedMs and counts against the timeout.
+     */
+    private static void startFlow(String data, String requestId, Point read, Point write,
+                                  int interval, int hold, int readTimeout, int timeout, String responseFile,
+                                  boolean stream) {
+        if (data == null || data.isEmpty()) {
+            sendError("FLOW requires request data");
+            return;
+        }
+        if ((read == null || write == null) && !calibration.isCalibrated()) {
+            sendError("FLOW requires readX, readY, writeX and writeY, or a saved calibration");
+            return;
+        }
+        final long intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval > 0 ? interval : DEFAULT_CLICK_INTERVAL);
+        final long holdNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(hold > 0 ? hold : DEFAULT_HOLD_TIME), intervalNanos / 2);
+        final long readNanos = TimeUnit.MILLISECONDS.toNanos(readTimeout > 0 ? readTimeout : DEFAULT_READ_PHASE);
+        final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout > 0 ? timeout : DEFAULT_FLOW_TIMEOUT);
+        final java.util.List<String> messages;
+        try {
+            messages = transport.encode("CCC_CHUNK", requestId != null ? requestId : UUID.randomUUID().toString(), data);
+        } catch (IOException e) {
+            sendError("Failed to encode request: " + e.getMessage());
+            return;
+        }
+        
+        boolean started = tasks.start(true, timeoutNanos, task -> {
+            StringBuilder timings = new StringBuilder();
+            if (!task.acquire(tasks.flowTurn, task.deadline)) {
+                appendTiming(timings, "queuedMs", task.dispatched);
+                sendResponse("flow_timeout", task.cancelled() ? "stopped" : "queued", timings.toString());
+                return;
+            }
+            task.begin();
+            long start = appendTiming(timings, "queuedMs", task.dispatched);
+            Point readAt = read;
+            Point writeAt = write;
+            if (read == null || write == null) {
+                Point[] located = calibration.locate();
+                appendTiming(timings, "locateMs", start);
+                if (located == null) {
+                    tasks.flowTurn.unlock();
+                    sendResponse("flow_timeout", "button_lost", timings.toString());
+                    return;
+                }
+                readAt = located[0];
+                writeAt = located[1];
+            }
+            watcher.addWaiter();
+            DeltaStream progress = stream && requestId != null ? watcher.openStream(requestId) : null;
+            long deadline = task.deadline;
+            String response = null;
+            // The user's text is the flow's own; SAVE/RESTORE_CLIPBOARD keep theirs in savedClipboard
+            String saved = null;
+            boolean clicked = false;
+            try {
+                long stageStart = System.nanoTime();
+                saved = readClipboardText();
+                stageStart = appendTiming(timings, "saveMs", stageStart);
+                
+                // Large requests go over as several chunks, each consumed by its own READ stage
+                long setNanos = 0;
+                int readClicks = 0;
+                int readSkipped = 0;
+                boolean consumed = true;
+                for (String message : messages) {
+                    long setStart = System.nanoTime();
+                    watcher.setContents(message);
+                    long readStart = System.nanoTime();
+                    setNanos += readStart - setStart;
+                    clicked = true;
+                    ClickStats stats = runClicks(task, "read", readAt.x, readAt.y, intervalNanos, holdNanos,
+                        Math.min(readStart + readNanos, deadline),
+                        () -> watcher.ownsClipboard() ? null : "request_consumed");
+                    readClicks += stats.clicks;
+                    readSkipped += stats.skipped;
+                    consumed &= "request_consumed".equals(stats.stopReason);
+                    if (task.cancelled() || System.nanoTime() - deadline >= 0) break;
+                }
+                timings.append(String.format(Locale.ROOT, ",\"setMs\":%.1f", setNanos / 1e6));
+                stageStart = appendTiming(timings, "readMs", stageStart + setNanos);
+                
+                final ChunkAssembler assembler = new ChunkAssembler(requestId);
+                final String[] found = new String[1];
+                final boolean[] verified = new boolean[1];
+                final int[] rejected = new int[1];
+                final long[] checkedCount = {-1};
+                ClickStats writeStats = runClicks(task, "write", writeAt.x, writeAt.y, intervalNanos, holdNanos, deadline, () -> {
+                    // Only scan the clipboard text again once the watcher has seen a new change
+                    long changeCount = watcher.changeCount();
+                    if (changeCount == checkedCount[0]) return null;
+                    checkedCount[0] = changeCount;
+                    String seen = watcher.lastSeen();
+                    if (seen != null && seen.contains("BROWSER_CHUNK")) {
+                        found[0] = assembler.accept(seen);
+                        return found[0] != null ? "response" : null;
+                    }
+                    // The bridge echoes the request id, so anything for another request is skipped
+                    EnvelopeScanner.Envelope envelope =
+                        EnvelopeScanner.scan(seen, "BROWSER_RESPONSE", requestId, System.currentTimeMillis());
+                    if (envelope == null) return null;
+                    if (!envelope.accepted()) {
+                        // Stale, corrupt or half-written: keep clicking WRITE for a good one
+                        rejected[0]++;
+                        log("Ignoring " + envelope.rejection + " response for " + envelope.id);
+                        return null;
+                    }
+                    found[0] = seen;
+                    verified[0] = envelope.verified;
+                    return "response";
+                });
+                response = found[0];
+                stageStart = appendTiming(timings, "writeMs", stageStart);
+                
+                watcher.setContents(saved);
+                appendTiming(timings, "restoreMs", stageStart);
+                appendTiming(timings, "totalMs", start);
+                timings.append(",\"readClicks\":").append(readClicks)
+                       .append(",\"writeClicks\":").append(writeStats.clicks)
+                       .append(",\"readSkipped\":").append(readSkipped)
+                       .append(",\"writeSkipped\":").append(writeStats.skipped)
+                       .append(",\"chunks\":").append(messages.size())
+                       .append(",\"consumed\":").append(consumed)
+                       .append(",\"rejected\":").append(rejected[0])
+                       .append(",\"verified\":").append(verified[0]);
+                if (progress != null) timings.append(",\"deltas\":").append(progress.deltas());
+                
+                if (response != null && responseFile != null) {
+                    // The response goes back through the file; only its region crosses the pipe
+                    timings.append(",\"responseFile\":{").append(MappedPayload.write(responseFile, 0, response)).append('}');
+                    sendResponse("flow_complete", null, timings.toString());
+                } else if (response != null) {
+                    sendResponse("flow_complete", response, timings.toString());
+                } else {
+                    sendResponse("flow_timeout", writeStats.stopReason, timings.toString());
+                }
+                
+            } catch (Exception e) {
+                // Until READ is clicked the bridge has seen nothing, so the flow can simply be retried
+                sendFailure("Flow failed: ", e, !clicked);
+                if (saved != null) {
+                    try {
+                        watcher.setContents(saved);
+                    } catch (Exception restoreError) {
+                        log("Failed to restore clipboard after flow: " + restoreError.getMessage());
+                    }
+                }
+            } finally {
+                if (progress != null) watcher.closeStream(progress);
+                watcher.removeWaiter();
+                tasks.flowTurn.unlock();
+            }
+        });
+        
+        if (started) sendResponse("flow_started", requestId);
+    }
+    
+    // Appends "name":ms since stageStart and returns the new stage start
+    private static long appendTiming(StringBuilder timings, String name, long stageStart) {
+        long now = System.nanoTime();
+        if (timings.length() > 0) timings.append(',');
+        timings.append('"').append(name).append("\":")
+               .append(String.format(Locale.ROOT, "%.1f", (now - stageStart) / 1e6));
+        return now;
+    }
+    
+    /**
+     * Clicks (x, y) every intervalNanos until STOP_CLICKING, the deadline, or until the
+     * condition returns a stop reason. Clicks are scheduled against System.nanoTime()
+     * at start + n * interval, so time spent in input calls does not accumulate as drift;
+     * if the loop falls more than one interval behind it skips the missed slots instead
+     * of bursting to catch up. Each click takes its turn on the input lane, so loops
+     * running side by side interleave whole clicks; time waiting for a turn shows as jitter.
+     * A slot where the named button shows busy or idle is skipped (see ButtonGate).
+     */
+    private static ClickStats runClicks(Task task, String button, int x, int y, long intervalNanos, long holdNanos,
+                                        long deadline, Supplier<String> condition) {
+        ClickStats stats = new ClickStats();
+        long start = System.nanoTime();
+        long next = start;
+        long lastClick = 0;
+        boolean paced = false;
+        
+        while (true) {
+            if (task.cancelled()) {
+                stats.stopReason = "stopped";
+                break;
+            }
+            String reason = condition.get();
+            if (reason != null) {
+                stats.stopReason = reason;
+                break;
+            }
+            long now = System.nanoTime();
+            if (now - deadline >= 0) break;
+            if (now - next < 0) {
+                parkUntil(task, Math.min(next, deadline));
+                continue;
+            }
+            
+            // The bridge would ignore this click; look again at the next slot
+            if (!buttons.allows(button, x, y)) {
+                stats.skipped++;
+                metrics.skippedClicks.incrementAndGet();
+                paced = false;
+                next = nextSlot(next, intervalNanos);
+                continue;
+            }
+            
+            // Cancelled or out of time while waiting; the checks above say which
+            if (!task.acquire(tasks.inputLane, deadline)) continue;
+            metrics.inputWait.record(System.nanoTime() - now);
+            long clickTime;
+            try {
+                // Only move when the cursor is off target; a redundant move costs a round-trip to the OS
+                Point current = input.position();
+                if (current.x != x || current.y != y) {
+                    long moveStart = System.nanoTime();
+                    input.move(x, y);
+                    metrics.robot.record(System.nanoTime() - moveStart);
+                }
+                
+                clickTime = System.nanoTime();
+                input.press();
+                metrics.robot.record(System.nanoTime() - clickTime);
+                parkUntil(task, clickTime + holdNanos);
+                long releaseStart = System.nanoTime();
+                input.release();
+                metrics.robot.record(System.nanoTime() - releaseStart);
+            } finally {
+                tasks.inputLane.unlock();
+            }
+            metrics.clicks.incrementAndGet();
+            
+            // Jitter is measured between back-to-back clicks, not across skipped slots
+            if (paced) {
+                long jitter = Math.abs((clickTime - lastClick) - intervalNanos);
+                stats.jitterSum += jitter;
+                stats.maxJitter = Math.max(stats.maxJitter, jitter);
+                stats.pacedClicks++;
+            }
+            lastClick = clickTime;
+            paced = true;
+            stats.clicks++;
+            next = nextSlot(next, intervalNanos);
+        }
+        stats.elapsedNanos = System.nanoTime() - start;
+        return stats;
+    }
+    
+    // The slot after next, or now if the loop has fallen more than one interval behind
+    private static long nextSlot(long next, long intervalNanos) {
+        next += intervalNanos;
+        long now = System.nanoTime();
+        return now - next > intervalNanos ? now : next;
+    }
+    
+    // Parks in short slices so STOP_CLICKING and until-conditions are noticed quickly,
+    // then spins out the last stretch for sub-millisecond accuracy
+    private static void parkUntil(Task task, long deadlineNanos) {
+        long remaining;
+        while ((remaining = deadlineNanos - System.nanoTime()) > SPIN_THRESHOLD_NANOS) {
+            LockSupport.parkNanos(Math.min(remaining - SPIN_THRESHOLD_NANOS, MAX_PARK_NANOS));
+            if (task.cancelled()) return;
+        }
+        while (deadlineNanos - System.nanoTime() > 0) {
+            Thread.yield();
+        }
+    }
+    
+    private static void stopClicking() {
+        tasks.cancelClicking();
+        sendResponse("clicking_stopped", null);
+    }
+    
+    // Fingerprinting waits for the screen, so it runs as a task rather than holding up commands
+    private static void calibrate(Point read, Point write) {
+        if (read == null || write == null) {
+            sendError("CALIBRATE requires readX, readY, writeX and writeY");
+            return;
+        }
+        tasks.start(false, NO_TIMEOUT, task -> {
+            task.begin();
+            try {
+                sendResponse("calibrated", null, calibration.calibrate(read, write));
+            } catch (Exception e) {
+                sendError("Calibration failed: " + e.getMessage());
+            }
+        });
+    }
+    
+    /**
+     * Switches both directions of the stdin/stdout protocol to length-prefixed frames.
+     * The acknowledgement is the last JSON line; everything after it, in both directions,
+     * is framed (see CommandReader.nextFrame and ResponseWriter). Only called on the main
+     * thread, between two reads, so the switch lands exactly after this command.
+     */
+    private static void setFraming(String mode) {
+        if (commandOutput.get() != null) {
+            sendError("SET_FRAMING is only available on stdin; daemon sessions use JSON lines");
+            return;
+        }
+        if ("framed".equals(mode)) {
+            if (framedInput) {
+                sendResponse("framing_set", "framed");
+                return;
+            }
+            sendResponse("framing_set", "framed");
+            output.setFramed(true);
+            try {
+                // Drop the newline that ended this command; frames follow it directly
+                commandReader.skipLine();
+            } catch (IOException e) {
+                log("Failed to switch input framing: " + e.getMessage());
+            }
+            framedInput = true;
+        } else if ("json".equals(mode)) {
+            sendResponse("framing_set", "json");
+            output.setFramed(false);
+            framedInput = false;
+        } else {
+            sendError("Unknown framing mode: " + mode);
+        }
+    }
+    
+    private static void configure(Map<String, Object> cmd) {
+        buttons.configure(cmd);
+        if (cmd.containsKey("chunking")) transport.chunking = Boolean.TRUE.equals(cmd.get("chunking"));
+        if (cmd.containsKey("chunkSize")) transport.chunkSize = Math.max(1024, parseInt(cmd.get("chunkSize")));
+        if (cmd.containsKey("compressThreshold")) transport.compressThreshold = Math.max(0, parseInt(cmd.get("compressThreshold")));
+        if (cmd.containsKey("statsInterval")) metrics.dumpEvery(parseInt(cmd.get("statsInterval")));
+        if (cmd.containsKey("queueLimit")) queueLimit = Math.max(1, parseInt(cmd.get("queueLimit")));
+        if (cmd.containsKey("clipboardRetryMs")) clipboardRetryMs = Math.max(0, parseInt(cmd.get("clipboardRetryMs")));
+        sendResponse("configured", null, String.format("\"chunking\":%b,\"chunkSize\":%d,\"compressThreshold\":%d,\"buttonColors\":%d,\"queueLimit\":%d,\"clipboardRetryMs\":%d",
+            transport.chunking, transport.chunkSize, transport.compressThreshold, buttons.colors(), queueLimit, clipboardRetryMs));
+    }
+    
+    // The listener (a tray tooltip) runs on the status lane, and a message replaced before
+    // the lane got to it is never shown, so a burst of statuses costs one update
+    private static void setStatus(String message) {
+        if (statusListener != null) {
+            if (pendingStatus.getAndSet(message != null ? message : "") == null) {
+                statusLane.execute(AgentCore::showStatus);
+            } else {
+                metrics.coalesced.incrementAndGet();
+            }
+        }
+        sendResponse("status_set", message);
+    }
+    
+    private static void showStatus() {
+        String message = pendingStatus.getAndSet(null);
+        try {
+            statusListener.accept(message);
+        } catch (RuntimeException e) {
+            log("Failed to show status: " + e.getMessage());
+        }
+    }
+    
+    // Helper methods
+    // (cmd[xKey], cmd[yKey]), or null if the command leaves the point out
+    private static Point point(Map<String, Object> cmd, String xKey, String yKey) {
+        if (!cmd.containsKey(xKey) || !cmd.containsKey(yKey)) return null;
+        return new Point(parseInt(cmd.get(xKey)), parseInt(cmd.get(yKey)));
+    }
+    
+    private static long parseLong(Object value) {
+        if (value == null) return 0;
+        if (value instanceof Number) return ((Number) value).longValue();
+        try {
+            return Long.parseLong(value.toString());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    
+    private static int parseInt(Object value) {
+        if (value == null) return 0;
+        if (value instanceof Number) return ((Number) value).intValue();
+        try {
+            return Integer.parseInt(value.toString());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    
+    static void sendResponse(String type, String data) {
+        sendResponse(type, data, null);
+    }
+    
+    // fields is an optional pre-rendered list of extra JSON members, e.g. "\"clicks\":3"
+    static void sendResponse(String type, String data, String fields) {
+        replyTo().send(type, data, fields, commandId.get());
+        java.util.List<Caller> riders = commandRiders.get();
+        if (riders != null) {
+            for (Caller rider : riders) rider.output().send(type, data, fields, rider.id);
+        }
+    }
+    
+    static void sendError(String error) {
+        sendError(error, null);
+    }
+    
+    static void sendError(String error, String fields) {
+        replyTo().error(error, fields, commandId.get());
+        java.util.List<Caller> riders = commandRiders.get();
+        if (riders != null) {
+            for (Caller rider : riders) rider.output().error(error, fields, rider.id);
+        }
+    }
+    
+    // Responses go back to the daemon session that sent the command, else to stdout
+    private static ResponseWriter replyTo() {
+        ResponseWriter session = commandOutput.get();
+        return session != null ? session : output;
+    }
+    
+    static void log(String message) {
+        System.err.println("[" + name + "] " + message);
+    }
+    
+    /**
+     * Single-pass JSON reader for the stdin command stream.
+     *
+     * Decodes UTF-8 straight from the stream into a reusable buffer and builds each
+     * value exactly once, so a multi-megabyte SET_CLIPBOARD payload costs one String
+     * rather than the split/trim/replace copies of the old line parser. Commands may
+     * span lines; anything between top-level objects is treated as whitespace.
+     */
+    static final class CommandReader {
+        private static final int MAX_DEPTH = 64;
+        // Builders that grew past this are dropped so one huge payload isn't pinned forever
+        private static final int MAX_RETAINED_CHARS = 1 << 20;
+        
+        private final InputStream in;
+        private final byte[] buf;
+        private int pos = 0;
+        private int limit = 0;
+        private int frameEnd = -1;
+        private boolean lostSync = false;
+        private int lookahead = -2;
+        private char pendingLowSurrogate = 0;
+        private StringBuilder text = new StringBuilder(256);
+        // Time spent waiting on the stream, so parse latency can leave it out
+        long blockedNanos = 0;
+        
+        CommandReader(InputStream in) {
+            this(in, 64 * 1024);
+        }
+        
+        CommandReader(InputStream in, int bufferSize) {
+            this.in = in;
+            buf = new byte[bufferSize];
+        }
+        
+        /** Reads the next command object, or returns null at end of stream. */
+        Map<String, Object> next() throws IOException {
+            int c = skipWhitespace();
+            if (c == -1) return null;
+            if (c != '{') {
+                throw new IllegalArgumentException("expected '{' but found '" + (char) c + "'");
+            }
+            read();
+            return readObject(1);
+        }
+        
+        /**
+         * Reads the next length-prefixed frame: big-endian int32 header length, int32
+         * payload length, a UTF-8 JSON header object, then the raw UTF-8 payload, which
+         * becomes the "data" field. Returns null at end of stream.
+         */
+        Map<String, Object> nextFrame() throws IOException {
+            if (!fill(1)) return null;
+            if (!fill(8)) throw lostSync("truncated frame");
+            int headerLength = readInt();
+            int payloadLength = readInt();
+            if (headerLength <= 0 || headerLength > buf.length || payloadLength < 0) {
+                throw lostSync("bad frame lengths " + headerLength + "/" + payloadLength);
+            }
+            if (!fill(headerLength)) throw lostSync("truncated frame");
+            
+            // Parse the header in place; readByte() reports end of input at frameEnd
+            frameEnd = pos + headerLength;
+            Map<String, Object> cmd = null;
+            IllegalArgumentException badHeader = null;
+            try {
+                cmd = next();
+                if (cmd == null || skipWhitespace() != -1) throw new IllegalArgumentException("bad frame header");
+            } catch (IllegalArgumentException e) {
+                badHeader = e;
+            } finally {
+                pos = frameEnd;
+                frameEnd = -1;
+                lookahead = -2;
+            }
+            if (badHeader != null) {
+                // The lengths still say where the frame ends, so the next one reads normally
+                skip(payloadLength);
+                throw badHeader;
+            }
+            
+            if (payloadLength > 0) cmd.put("data", readPayload(payloadLength));
+            return cmd;
+        }
+        
+        /** True once a frame's lengths could not be trusted: there is no boundary left to resync on. */
+        boolean lostSync() {
+            return lostSync;
+        }
+        
+        private IllegalArgumentException lostSync(String message) {
+            lostSync = true;
+            return new IllegalArgumentException(message);
+        }
+        
+        private void skip(int length) throws IOException {
+            while (length > 0) {
+                if (pos == limit && !fill(1)) throw lostSync("truncated frame");
+                int n = Math.min(length, limit - pos);
+                pos += n;
+                length -= n;
+            }
+        }
+        
+        // Decodes a payload straight from the buffer when it fits, else via one exact-size array
+        private String readPayload(int length) throws IOException {
+            if (length <= buf.length) {
+                if (!fill(length)) throw lostSync("truncated frame");
+                String payload = new String(buf, pos, length, StandardCharsets.UTF_8);
+                pos += length;
+                return payload;
+            }
+            byte[] bytes = new byte[length];
+            int have = limit - pos;
+            System.arraycopy(buf, pos, bytes, 0, have);
+            pos = limit;
+            while (have < length) {
+                int n = readIn(bytes, have, length - have);
+                if (n < 0) throw lostSync("truncated frame");
+                have += n;
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        
+        private int readIn(byte[] bytes, int offset, int length) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return in.read(bytes, offset, length);
+            } finally {
+                blockedNanos += System.nanoTime() - start;
+            }
+        }
+        
+        private int readInt() {
+            int value = ((buf[pos] & 0xFF) << 24) | ((buf[pos + 1] & 0xFF) << 16)
+                | ((buf[pos + 2] & 0xFF) << 8) | (buf[pos + 3] & 0xFF);
+            pos += 4;
+            return value;
+        }
+        
+        // Makes at least n bytes readable from pos, compacting the buffer; false on end of stream
+        private boolean fill(int n) throws IOException {
+            if (limit - pos >= n) return true;
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+            while (limit < n) {
+                int read = readIn(buf, limit, buf.length - limit);
+                if (read < 0) return false;
+                limit += read;
+            }
+            return true;
+        }
+        
+        /** Discards input up to and including the next newline, to resync after a bad command. */
+        void skipLine() throws IOException {
+            int c;
+            do {
+                c = read();
+            } while (c != -1 && c != '\n');
+        }
+        
+        private Map<String, Object> readObject(int depth) throws IOException {
+            if (depth > MAX_DEPTH) throw new IllegalArgumentException("nesting too deep");
+            Map<String, Object> result = new HashMap<>();
+            if (skipWhitespace() == '}') {
+                read();
+                return result;
+            }
+            while (true) {
+                if (skipWhitespace() != '"') throw unexpected("object key");
+                read();
+                String key = readString();
+                if (skipWhitespace() != ':') throw unexpected("':'");
+                read();
+                result.put(key, readValue(depth));
+                int c = skipWhitespace();
+                read();
+                if (c == '}') return result;
+                if (c != ',') throw unexpected("',' or '}'");
+            }
+        }
+        
+        private java.util.List<Object> readArray(int depth) throws IOException {
+            if (depth > MAX_DEPTH) throw new IllegalArgumentException("nesting too deep");
+            java.util.List<Object> result = new ArrayList<>();
+            if (skipWhitespace() == ']') {
+                read();
+                return result;
+            }
+            while (true) {
+                result.add(readValue(depth));
+                int c = skipWhitespace();
+                read();
+                if (c == ']') return result;
+                if (c != ',') throw unexpected("',' or ']'");
+            }
+        }
+        
+        private Object readValue(int depth) throws IOException {
+            int c = skipWhitespace();
+            switch (c) {
+                case '"':
+                    read();
+                    return readString();
+                case '{':
+                    read();
+                    return readObject(depth + 1);
+                case '[':
+                    read();
+                    return readArray(depth + 1);
+                case 't':
+                    expectLiteral("true");
+                    return Boolean.TRUE;
+                case 'f':
+                    expectLiteral("false");
+                    return Boolean.FALSE;
+                case 'n':
+                    expectLiteral("null");
+                    return null;
+                default:
+                    if (c == '-' || (c >= '0' && c <= '9')) return readNumber();
+                    throw unexpected("value");
+            }
+        }
+        
+        // Called with the opening quote already consumed
+        private String readString() throws IOException {
+            StringBuilder sb = text;
+            sb.setLength(0);
+            while (true) {
+                int c = read();
+                if (c == '"') break;
+                if (c == -1) throw new IllegalArgumentException("unterminated string");
+                if (c != '\\') {
+                    sb.append((char) c);
+                    continue;
+                }
+                int e = read();
+                switch (e) {
+                    case '"': sb.append('"'); break;
+                    case '\\': sb.append('\\'); break;
+                    case '/': sb.append('/'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u': sb.append(readHexChar()); break;
+                    default: throw new IllegalArgumentException("bad escape '\\" + (char) e + "'");
+                }
+            }
+            String value = sb.toString();
+            if (sb.capacity() > MAX_RETAINED_CHARS) {
+                text = new StringBuilder(256);
+            }
+            return value;
+        }
+        
+        private char readHexChar() throws IOException {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                int digit = Character.digit(read(), 16);
+                if (digit < 0) throw new IllegalArgumentException("bad \\u escape");
+                value = (value << 4) | digit;
+            }
+            return (char) value;
+        }
+        
+        private Object readNumber() throws IOException {
+            StringBuilder sb = text;
+            sb.setLength(0);
+            boolean integral = true;
+            int c = skipWhitespace();
+            while (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9')) {
+                if (c == '.' || c == 'e' || c == 'E') integral = false;
+                sb.append((char) read());
+                c = peek();
+            }
+            String literal = sb.toString();
+            try {
+                if (integral) return Long.valueOf(literal);
+                return Double.valueOf(literal);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("bad number '" + literal + "'");
+            }
+        }
+        
+        private void expectLiteral(String literal) throws IOException {
+            for (int i = 0; i < literal.length(); i++) {
+                if (read() != literal.charAt(i)) {
+                    throw new IllegalArgumentException("expected '" + literal + "'");
+                }
+            }
+        }
+        
+        private IllegalArgumentException unexpected(String expected) throws IOException {
+            int c = peek();
+            return new IllegalArgumentException("expected " + expected + " but found "
+                + (c == -1 ? "end of input" : "'" + (char) c + "'"));
+        }
+        
+        private int skipWhitespace() throws IOException {
+            int c = peek();
+            while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                read();
+                c = peek();
+            }
+            return c;
+        }
+        
+        private int peek() throws IOException {
+            if (lookahead == -2) lookahead = decode();
+            return lookahead;
+        }
+        
+        private int read() throws IOException {
+            if (lookahead != -2) {
+                int c = lookahead;
+                lookahead = -2;
+                return c;
+            }
+            return decode();
+        }
+        
+        // Decodes one UTF-16 code unit from the UTF-8 byte stream (-1 at end of input)
+        private int decode() throws IOException {
+            if (pendingLowSurrogate != 0) {
+                char low = pendingLowSurrogate;
+                pendingLowSurrogate = 0;
+                return low;
+            }
+            int b = readByte();
+            if (b < 0x80) return b;
+            if ((b & 0xE0) == 0xC0) {
+                return ((b & 0x1F) << 6) | continuation();
+            }
+            if ((b & 0xF0) == 0xE0) {
+                return ((b & 0x0F) << 12) | (continuation() << 6) | continuation();
+            }
+            if ((b & 0xF8) == 0xF0) {
+                int codePoint = ((b & 0x07) << 18) | (continuation() << 12)
+                    | (continuation() << 6) | continuation();
+                if (!Character.isSupplementaryCodePoint(codePoint)) return 0xFFFD;
+                pendingLowSurrogate = Character.lowSurrogate(codePoint);
+                return Character.highSurrogate(codePoint);
+            }
+            return 0xFFFD;
+        }
+        
+        private int continuation() throws IOException {
+            int b = readByte();
+            if ((b & 0xC0) != 0x80) throw new IllegalArgumentException("malformed UTF-8 input");
+            return b & 0x3F;
+        }
+        
+        private int readByte() throws IOException {
+            if (pos == frameEnd) return -1;
+            if (pos == limit) {
+                limit = readIn(buf, 0, buf.length);
+                pos = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buf[pos++] & 0xFF;
+        }
+    }
+    
+    /** Outcome of one runClicks() call, reported in click_loop_complete. */
+    static final class ClickStats {
+        int clicks = 0;
+        int skipped = 0;
+        int pacedClicks = 0;
+        long jitterSum = 0;
+        long maxJitter = 0;
+        long elapsedNanos = 0;
+        String stopReason = "timeout";
+        
+        String toJson() {
+            double rate = elapsedNanos > 0 ? clicks / (elapsedNanos / 1e9) : 0;
+            double meanJitterMs = pacedClicks > 0 ? jitterSum / pacedClicks / 1e6 : 0;
+            return String.format(Locale.ROOT,
+                "\"clicks\":%d,\"skipped\":%d,\"rate\":%.2f,\"jitterMs\":%.3f,\"maxJitterMs\":%.3f,\"stopReason\":\"%s\"",
+                clicks, skipped, rate, meanJitterMs, maxJitter / 1e6, stopReason);
+        }
+    }
+    
+    /**
+     * Pixel-state gating (S2.2): the bridge colours its buttons by state, so a look at the
+     * screen tells whether a click can do anything. Before each click the input backend
+     * samples a few pixels around the button and their average colour is matched against
+     * CONFIGURE's buttonColors palette, e.g.
+     *
+     *   "buttonColors": {"ready": "#28a745", "busy": ["#ffc107", "#0f3460"], "idle": "#17a2b8"}
+     *
+     * While a button shows busy (the bridge is working) or idle (it has nothing to read
+     * or write) its clicks are skipped. A colour within buttonTolerance of no palette
+     * entry, a backend that cannot see the screen, or an empty palette (the default)
+     * leave clicking as it was. Each button is sampled at most once per sampleInterval
+     * ms, its last state standing in between; sampleRadius sets the square sampled.
+     * Every change of a button's state is pushed as a button_state event.
+     */
+    static final class ButtonGate {
+        private static final int DEFAULT_TOLERANCE = 40;
+        private static final int DEFAULT_RADIUS = 2;
+        private static final int MAX_RADIUS = 8;
+        private static final int DEFAULT_SAMPLE_INTERVAL = 50;
+        
+        // rgb -> state; replaced whole, so a sample never sees half a palette
+        private volatile Map<Integer, String> palette = Collections.emptyMap();
+        private volatile int tolerance = DEFAULT_TOLERANCE;
+        private volatile int radius = DEFAULT_RADIUS;
+        private volatile long sampleNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SAMPLE_INTERVAL);
+        private final ConcurrentMap<String, Button> seen = new ConcurrentHashMap<>();
+        
+        // The last look at one button
+        private static final class Button {
+            int x;
+            int y;
+            long sampledAt;
+            String state;
+        }
+        
+        @SuppressWarnings("unchecked")
+        void configure(Map<String, Object> cmd) {
+            if (cmd.containsKey("buttonColors")) {
+                Map<Integer, String> colors = new HashMap<>();
+                Object value = cmd.get("buttonColors");
+                if (value instanceof Map) {
+                    for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                        String state = entry.getKey();
+                        if (!"ready".equals(state) && !"busy".equals(state) && !"idle".equals(state)) {
+                            throw new IllegalArgumentException("Unknown button state: " + state);
+                        }
+                        Object spec = entry.getValue();
+                        for (Object color : spec instanceof java.util.List
+                                ? (java.util.List<Object>) spec : Collections.singletonList(spec)) {
+                            colors.put(parseColor(color), state);
+                        }
+                    }
+                }
+                palette = colors;
+                seen.clear();
+            }
+            if (cmd.containsKey("buttonTolerance")) tolerance = Math.max(0, Math.min(255, parseInt(cmd.get("buttonTolerance"))));
+            if (cmd.containsKey("sampleRadius")) radius = Math.max(0, Math.min(MAX_RADIUS, parseInt(cmd.get("sampleRadius"))));
+            if (cmd.containsKey("sampleInterval")) {
+                sampleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, parseInt(cmd.get("sampleInterval"))));
+            }
+        }
+        
+        int colors() {
+            return palette.size();
+        }
+        
+        /** Whether a click on the named button at (x, y) can do anything: not while it shows busy or idle. */
+        boolean allows(String name, int x, int y) {
+            if (palette.isEmpty()) return true;
+            String state = state(name, x, y);
+            return !"busy".equals(state) && !"idle".equals(state);
+        }
+        
+        private String state(String name, int x, int y) {
+            Button button = seen.computeIfAbsent(name, k -> new Button());
+            synchronized (button) {
+                long now = System.nanoTime();
+                boolean moved = button.state == null || button.x != x || button.y != y;
+                if (!moved && now - button.sampledAt < sampleNanos) return button.state;
+                
+                int rgb = input.sample(x, y, radius);
+                metrics.sample.record(System.nanoTime() - now);
+                String state = classify(rgb);
+                button.sampledAt = now;
+                if (moved || !state.equals(button.state)) {
+                    StringBuilder fields = new StringBuilder(64);
+                    fields.append("\"state\":\"").append(state).append("\",\"color\":");
+                    if (rgb < 0) {
+                        fields.append("null");
+                    } else {
+                        fields.append("\"#").append(String.format(Locale.ROOT, "%06x", rgb)).append('"');
+                    }
+                    fields.append(",\"x\":").append(x).append(",\"y\":").append(y);
+                    sendResponse("button_state", name, fields.toString());
+                }
+                button.x = x;
+                button.y = y;
+                button.state = state;
+                return state;
+            }
+        }
+        
+        // The state of the closest palette colour within tolerance on every channel
+        private String classify(int rgb) {
+            if (rgb < 0) return "unknown";
+            String state = "unknown";
+            int best = Integer.MAX_VALUE;
+            for (Map.Entry<Integer, String> entry : palette.entrySet()) {
+                int color = entry.getKey();
+                int red = Math.abs(((rgb >> 16) & 0xFF) - ((color >> 16) & 0xFF));
+                int green = Math.abs(((rgb >> 8) & 0xFF) - ((color >> 8) & 0xFF));
+                int blue = Math.abs((rgb & 0xFF) - (color & 0xFF));
+                if (Math.max(red, Math.max(green, blue)) > tolerance) continue;
+                if (red + green + blue < best) {
+                    best = red + green + blue;
+                    state = entry.getValue();
+                }
+            }
+            return state;
+        }
+        
+        // "#rrggbb" or "rrggbb"
+        private static int parseColor(Object value) {
+            String text = String.valueOf(value);
+            String hex = text.startsWith("#") ? text.substring(1) : text;
+            try {
+                int rgb = hex.length() == 6 ? Integer.parseInt(hex, 16) : -1;
+                if (rgb >= 0) return rgb;
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            throw new IllegalArgumentException("Bad button colour: " + text);
+        }
+    }
+    
+    /**
+     * The READ and WRITE button positions, kept across restarts in a small JSON file
+     * (-Dccc.calibration, default ~/.ccc/calibration.json) with a fingerprint of each
+     * button: the bounds of the solid patch of colour under its calibrated point. A FLOW
+     * sent without coordinates clicks these positions, after checking them: one capture
+     * of the bounds, in which a few pixels just inside must share a colour and those just
+     * outside must not. The colour itself is not compared, so a button changing state
+     * still passes. A button that fails is first tried at the offset the other one moved
+     * by, then looked for within SEARCH_MARGIN px of its old bounds as a solid patch of
+     * the same size. A button found again is saved and announced with button_moved; one
+     * that is not fails the FLOW at once with button_lost instead of clicking empty space
+     * until it times out. A patch too big to bound (a full-screen overlay) is only
+     * checked for being one colour.
+     */
+    static final class Calibration {
+        private static final int PROBE = 200;
+        private static final int SEARCH_MARGIN = 300;
+        private static final int TOLERANCE = 40;
+        // Sizes of a patch that is still the same button: 10% or 4px, whichever is more
+        private static final int SIZE_SLACK_PERCENT = 10;
+        private static final int MIN_SIZE_SLACK = 4;
+        private static final int OUTSIDE = 3;
+        
+        private final String path = System.getProperty("ccc.calibration",
+            Paths.get(System.getProperty("user.home"), ".ccc", "calibration.json").toString());
+        private boolean loaded;
+        private Button read;
+        private Button write;
+        
+        /** A click point and the bounds of its button's patch, relative to it (right and bottom exclusive). */
+        static final class Button {
+            final int x;
+            final int y;
+            final int left;
+            final int top;
+            final int right;
+            final int bottom;
+            final boolean bounded;
+            final int color;
+            
+            Button(int x, int y, int left, int top, int right, int bottom, boolean bounded, int color) {
+                this.x = x;
+                this.y = y;
+                this.left = left;
+                this.top = top;
+                this.right = right;
+                this.bottom = bottom;
+                this.bounded = bounded;
+                this.color = color;
+            }
+            
+            Button movedTo(int newX, int newY) {
+                return new Button(newX, newY, left, top, right, bottom, bounded, color);
+            }
+            
+            int width() {
+                return right - left;
+            }
+            
+            int height() {
+                return bottom - top;
+            }
+            
+            String toJson() {
+                return "{\"x\":" + x + ",\"y\":" + y + ",\"left\":" + left + ",\"top\":" + top
+                    + ",\"right\":" + right + ",\"bottom\":" + bottom + ",\"bounded\":" + bounded
+                    + ",\"color\":\"#" + String.format(Locale.ROOT, "%06x", color) + "\"}";
+            }
+            
+            static Button fromJson(Object value) {
+                if (!(value instanceof Map)) return null;
+                Map<?, ?> json = (Map<?, ?>) value;
+                Object color = json.get("color");
+                return new Button(parseInt(json.get("x")), parseInt(json.get("y")),
+                    parseInt(json.get("left")), parseInt(json.get("top")),
+                    parseInt(json.get("right")), parseInt(json.get("bottom")),
+                    Boolean.TRUE.equals(json.get("bounded")),
+                    color instanceof String ? Integer.parseInt(((String) color).substring(1), 16) : 0);
+            }
+        }
+        
+        /** Fingerprints both buttons at the given points and saves them; returns the calibration as JSON members. */
+        synchronized String calibrate(Point readAt, Point writeAt) throws IOException {
+            loaded = true;
+            read = fingerprint(readAt);
+            write = fingerprint(writeAt);
+            save();
+            return fields();
+        }
+        
+        /** The saved calibration as JSON members, "calibrated":false if there is none. */
+        synchronized String describe() {
+            load();
+            return read != null ? fields() : "\"calibrated\":false";
+        }
+        
+        /** Checked READ and WRITE positions, or null if not calibrated or a button could not be found. */
+        synchronized Point[] locate() {
+            load();
+            if (read == null) return null;
+            Button readNow = check("read", read, read);
+            if (readNow == null) return null;
+            Button writeNow = check("write", write, write.movedTo(write.x + readNow.x - read.x, write.y + readNow.y - read.y));
+            if (writeNow == null) return null;
+            if (readNow != read || writeNow != write) {
+                read = readNow;
+                write = writeNow;
+                try {
+                    save();
+                } catch (IOException e) {
+                    log("Failed to save calibration: " + e.getMessage());
+                }
+            }
+            return new Point[] {new Point(read.x, read.y), new Point(write.x, write.y)};
+        }
+        
+        synchronized boolean isCalibrated() {
+            load();
+            return read != null;
+        }
+        
+        private String fields() {
+            return "\"calibrated\":true,\"read\":" + read.toJson() + ",\"write\":" + write.toJson()
+                + ",\"path\":\"" + path.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+        }
+        
+        // The button where it was, where the other one's move puts it, or nearby; null if lost
+        private Button check(String name, Button button, Button guess) {
+            long start = System.nanoTime();
+            if (inPlace(button)) return button;
+            Button found = guess != button && inPlace(guess) ? guess : button.bounded ? search(button) : null;
+            double searchMs = (System.nanoTime() - start) / 1e6;
+            if (found == null) {
+                log("Lost the " + name + " button near " + button.x + "," + button.y);
+                sendResponse("button_lost", name, "\"x\":" + button.x + ",\"y\":" + button.y);
+                return null;
+            }
+            log(String.format(Locale.ROOT, "The %s button moved from %d,%d to %d,%d (found in %.1fms)",
+                name, button.x, button.y, found.x, found.y, searchMs));
+            sendResponse("button_moved", name, String.format(Locale.ROOT,
+                "\"x\":%d,\"y\":%d,\"fromX\":%d,\"fromY\":%d,\"searchMs\":%.1f",
+                found.x, found.y, button.x, button.y, searchMs));
+            return found;
+        }
+        
+        // The patch of the most common colour around the point, bounded within PROBE px
+        private static Button fingerprint(Point at) {
+            int side = 2 * PROBE + 1;
+            int[] pixels = input.capture(at.x - PROBE, at.y - PROBE, side, side);
+            if (pixels == null) return new Button(at.x, at.y, 0, 0, 1, 1, false, 0);
+            int color = dominantColor(pixels, side, PROBE, PROBE, 10);
+            int[] patch = patch(pixels, side, side, nearestMatch(pixels, side, PROBE, PROBE, color), color, null);
+            boolean bounded = patch[0] > 0 && patch[1] > 0 && patch[2] < side && patch[3] < side;
+            return new Button(at.x, at.y, patch[0] - PROBE, patch[1] - PROBE, patch[2] - PROBE, patch[3] - PROBE,
+                bounded, color);
+        }
+        
+        // One capture of the bounds plus a margin: uniform just inside, different just outside
+        private static boolean inPlace(Button button) {
+            long start = System.nanoTime();
+            int x0 = button.x + button.left - OUTSIDE;
+            int y0 = button.y + button.top - OUTSIDE;
+            int width = button.width() + 2 * OUTSIDE;
+            int height = button.height() + 2 * OUTSIDE;
+            int[] pixels = input.capture(x0, y0, width, height);
+            metrics.sample.record(System.nanoTime() - start);
+            if (pixels == null) return true;
+            // Inset by 15% to stay off the rounded corners and the label
+            int left = OUTSIDE + button.width() * 15 / 100;
+            int right = OUTSIDE + button.width() - 1 - button.width() * 15 / 100;
+            int top = OUTSIDE + button.height() * 15 / 100;
+            int bottom = OUTSIDE + button.height() - 1 - button.height() * 15 / 100;
+            int centerX = OUTSIDE + button.width() / 2;
+            int centerY = OUTSIDE + button.height() / 2;
+            int color = pixels[top * width + left];
+            int[][] inside = {{right, top}, {left, bottom}, {right, bottom}, {centerX, top}, {centerX, bottom},
+                {left, centerY}, {right, centerY}};
+            for (int[] point : inside) {
+                if (!similar(pixels[point[1] * width + point[0]], color)) return false;
+            }
+            if (!button.bounded) return true;
+            int[][] outside = {{0, centerY}, {width - 1, centerY}, {centerX, 0}, {centerX, height - 1}};
+            for (int[] point : outside) {
+                if (similar(pixels[point[1] * width + point[0]], color)) return false;
+            }
+            return true;
+        }
+        
+        // A solid patch of the button's size within SEARCH_MARGIN of its old bounds, nearest first
+        private static Button search(Button button) {
+            long start = System.nanoTime();
+            int x0 = button.x + button.left - SEARCH_MARGIN;
+            int y0 = button.y + button.top - SEARCH_MARGIN;
+            int width = button.width() + 2 * SEARCH_MARGIN;
+            int height = button.height() + 2 * SEARCH_MARGIN;
+            int[] pixels = input.capture(x0, y0, width, height);
+            metrics.sample.record(System.nanoTime() - start);
+            if (pixels == null) return null;
+            
+            int widthSlack = Math.max(MIN_SIZE_SLACK, button.width() * SIZE_SLACK_PERCENT / 100);
+            int heightSlack = Math.max(MIN_SIZE_SLACK, button.height() * SIZE_SLACK_PERCENT / 100);
+            boolean[] claimed = new boolean[pixels.length];
+            Button best = null;
+            long bestDistance = Long.MAX_VALUE;
+            // Rows a quarter button apart each cross it at least twice clear of the label; a run
+            // of one colour as wide as the button is filled to check it, and background never is
+            for (int y = 0; y < height; y += Math.max(1, button.height() / 4)) {
+                int x = 0;
+                while (x < width) {
+                    int seed = y * width + x;
+                    while (x < width && similar(pixels[y * width + x], pixels[seed])) x++;
+                    if (Math.abs(x - seed % width - button.width()) > widthSlack || claimed[seed]) continue;
+                    int[] patch = patch(pixels, width, height, seed, pixels[seed], claimed);
+                    int patchWidth = patch[2] - patch[0];
+                    int patchHeight = patch[3] - patch[1];
+                    if (Math.abs(patchWidth - button.width()) > widthSlack
+                            || Math.abs(patchHeight - button.height()) > heightSlack
+                            || patch[4] * 2L < (long) patchWidth * patchHeight) {
+                        continue;
+                    }
+                    int newX = x0 + patch[0] - button.left;
+                    int newY = y0 + patch[1] - button.top;
+                    long dx = newX - button.x;
+                    long dy = newY - button.y;
+                    if (dx * dx + dy * dy < bestDistance) {
+                        bestDistance = dx * dx + dy * dy;
+                        best = new Button(newX, newY, button.left, button.top,
+                            button.left + patchWidth, button.top + patchHeight, true, pixels[seed]);
+                    }
+                }
+            }
+            return best;
+        }
+        
+        // Flood fill (4-neighbour) of the pixels similar to color, from seed; returns
+        // {left, top, right, bottom, count}. Filled pixels are marked in claimed if given
+        private static int[] patch(int[] pixels, int width, int height, int seed, int color, boolean[] claimed) {
+            boolean[] seen = claimed != null ? claimed : new boolean[pixels.length];
+            int[] stack = new int[64];
+            int size = 0;
+            int left = width, top = height, right = 0, bottom = 0, count = 0;
+            stack[size++] = seed;
+            seen[seed] = true;
+            while (size > 0) {
+                int pixel = stack[--size];
+                int px = pixel % width;
+                int py = pixel / width;
+                left = Math.min(left, px);
+                top = Math.min(top, py);
+                right = Math.max(right, px + 1);
+                bottom = Math.max(bottom, py + 1);
+                count++;
+                if (size + 4 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+                if (px > 0) size = push(pixels, seen, pixel - 1, color, stack, size);
+                if (px + 1 < width) size = push(pixels, seen, pixel + 1, color, stack, size);
+                if (py > 0) size = push(pixels, seen, pixel - width, color, stack, size);
+                if (py + 1 < height) size = push(pixels, seen, pixel + width, color, stack, size);
+            }
+            return new int[] {left, top, right, bottom, count};
+        }
+        
+        private static int push(int[] pixels, boolean[] seen, int pixel, int color, int[] stack, int size) {
+            if (seen[pixel] || !similar(pixels[pixel], color)) return size;
+            seen[pixel] = true;
+            stack[size] = pixel;
+            return size + 1;
+        }
+        
+        // The most frequent colour (to 4 bits a channel) within radius of (cx, cy): the
+        // button's fill, even when the point sits on its label
+        private static int dominantColor(int[] pixels, int width, int cx, int cy, int radius) {
+            int[] counts = new int[4096];
+            int best = 0;
+            int bestPixel = pixels[cy * width + cx];
+            for (int y = cy - radius; y <= cy + radius; y++) {
+                for (int x = cx - radius; x <= cx + radius; x++) {
+                    int pixel = pixels[y * width + x];
+                    int key = (pixel >> 12 & 0xF00) | (pixel >> 8 & 0xF0) | (pixel >> 4 & 0xF);
+                    if (++counts[key] > best) {
+                        best = counts[key];
+                        bestPixel = pixel;
+                    }
+                }
+            }
+            return bestPixel;
+        }
+        
+        // Index of the pixel of the given colour closest to (cx, cy), searching outwards in rings
+        private static int nearestMatch(int[] pixels, int width, int cx, int cy, int color) {
+            for (int ring = 0; ring <= cx && ring <= cy; ring++) {
+                for (int y = cy - ring; y <= cy + ring; y++) {
+                    for (int x = cx - ring; x <= cx + ring; x++) {
+                        if ((Math.abs(x - cx) == ring || Math.abs(y - cy) == ring) && similar(pixels[y * width + x], color)) {
+                            return y * width + x;
+                        }
+                    }
+                }
+            }
+            return cy * width + cx;
+        }
+        
+        private static boolean similar(int a, int b) {
+            return Math.abs(((a >> 16) & 0xFF) - ((b >> 16) & 0xFF)) <= TOLERANCE
+                && Math.abs(((a >> 8) & 0xFF) - ((b >> 8) & 0xFF)) <= TOLERANCE
+                && Math.abs((a & 0xFF) - (b & 0xFF)) <= TOLERANCE;
+        }
+        
+        private void load() {
+            if (loaded) return;
+            loaded = true;
+            File file = new File(path);
+            if (!file.isFile()) return;
+            try (InputStream in = new FileInputStream(file)) {
+                Map<String, Object> saved = new CommandReader(in, 4096).next();
+                if (saved == null) return;
+                Button savedRead = Button.fromJson(saved.get("read"));
+                Button savedWrite = Button.fromJson(saved.get("write"));
+                if (savedRead != null && savedWrite != null) {
+                    read = savedRead;
+                    write = savedWrite;
+                    log("Loaded calibration from " + path);
+                }
+            } catch (IOException | RuntimeException e) {
+                log("Ignoring unreadable calibration " + path + ": " + e.getMessage());
+            }
+        }
+        
+        // Written aside and moved into place, so a crash never leaves half a file
+        private void save() throws IOException {
+            java.nio.file.Path target = Paths.get(path);
+            if (target.getParent() != null) Files.createDirectories(target.getParent());
+            java.nio.file.Path temp = Paths.get(path + ".tmp");
+            String json = "{\"read\":" + read.toJson() + ",\"write\":" + write.toJson()
+                + ",\"savedAt\":" + System.currentTimeMillis() + "}\n";
+            Files.write(temp, json.getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+    
+    // A command that responses go to: its id, the daemon session it came from (null for
+    // stdin) and its latency
+    private static final class Caller {
+        final String id = commandId.get();
+        final ResponseWriter session = commandOutput.get();
+        final CommandTiming timing = commandTiming.get();
+        
+        ResponseWriter output() {
+            return session != null ? session : output;
+        }
+    }
+    
+    /**
+     * The clipboard lane: transfers run one at a time, in arrival order, on a thread of
+     * their own, so a large copy never holds up the reader. At most queueLimit wait; a
+     * command beyond that is refused with busy at once rather than piling up, and the
+     * reader never blocks on a full lane.
+     *
+     * Work submitted with a key joins the last waiting command if it has the same key:
+     * it runs once, and each caller gets every response, with its own id. Only the last
+     * one is joined, so nothing queued in between (a SET_CLIPBOARD, say) can change what
+     * the merged command would have answered.
+     */
+    static final class CommandQueue implements Runnable {
+        private final ArrayDeque<Job> waiting = new ArrayDeque<>();
+        
+        CommandQueue(String name) {
+            Thread thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        private static final class Job {
+            final String key;
+            final Runnable work;
+            final Caller caller = new Caller();
+            final java.util.List<Caller> riders = new ArrayList<>(0);
+            final long queuedAt = System.nanoTime();
+            
+            Job(String key, Runnable work) {
+                this.key = key;
+                this.work = work;
+            }
+        }
+        
+        /** Queues work for the command being dispatched; its latency runs until the work is done. */
+        void submit(String key, Runnable work) {
+            // Set first: the lane may finish the command before submit returns
+            CommandTiming timing = commandTiming.get();
+            if (timing != null) timing.queued = true;
+            int limit = queueLimit;
+            synchronized (this) {
+                Job last = waiting.peekLast();
+                if (key != null && last != null && key.equals(last.key)) {
+                    last.riders.add(new Caller());
+                    metrics.coalesced.incrementAndGet();
+                    return;
+                }
+                if (waiting.size() < limit) {
+                    waiting.addLast(new Job(key, work));
+                    notifyAll();
+                    return;
+                }
+            }
+            if (timing != null) timing.queued = false;
+            refuse(limit, limit);
+        }
+        
+        @Override
+        public void run() {
+            while (true) {
+                Job job;
+                synchronized (this) {
+                    while (waiting.isEmpty()) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    job = waiting.pollFirst();
+                }
+                metrics.queue.record(System.nanoTime() - job.queuedAt);
+                commandId.set(job.caller.id);
+                commandOutput.set(job.caller.session);
+                if (!job.riders.isEmpty()) commandRiders.set(job.riders);
+                try {
+                    job.work.run();
+                } catch (Exception e) {
+                    sendError("Command failed: " + e.getMessage());
+                } finally {
+                    commandId.remove();
+                    commandOutput.remove();
+                    commandRiders.remove();
+                    if (job.caller.timing != null) job.caller.timing.finish();
+                    for (Caller rider : job.riders) {
+                        if (rider.timing != null) rider.timing.finish();
+                    }
+                }
+            }
+        }
+    }
+    
+    // Latency of one command from dispatch until it, or the lane task it handed off to, finishes
+    private static final class CommandTiming {
+        final long start = System.nanoTime();
+        String command;
+        boolean queued = false;
+        
+        CommandTiming(String command) {
+            this.command = command != null ? command : "UNKNOWN";
+        }
+        
+        void finish() {
+            metrics.command(command).record(System.nanoTime() - start);
+        }
+    }
+    
+    /**
+     * The clicking commands (CLICK_LOOP, FLOW, RESTORE_MOUSE) as tasks, each on a thread
+     * of its own: a virtual thread where the JVM has them (21+, looked up reflectively so
+     * the agent still runs on Java 8), else a pooled daemon thread. A task spends nearly
+     * all its time waiting, between clicks, on the clipboard or for its turn, and with a
+     * thread per task those waits no longer queue one command behind another.
+     *
+     * What must not overlap still takes turns, in arrival order: every click (move,
+     * press, hold, release) holds the input lane, so loops running side by side
+     * interleave whole clicks, and a FLOW holds the flow turn from saving the clipboard
+     * to restoring it. STOP_CLICKING cancels every clicking task, running or waiting,
+     * and a daemon session's tasks are cancelled when it disconnects.
+     */
+    static final class Tasks {
+        // Fair, so waiters get their turn in the order they arrived
+        final ReentrantLock inputLane = new ReentrantLock(true);
+        final ReentrantLock flowTurn = new ReentrantLock(true);
+        private final Set<Task> running = ConcurrentHashMap.newKeySet();
+        private final ExecutorService threads = newExecutor();
+        
+        /**
+         * Runs body as a task of the command being dispatched, with its id and session.
+         * The command's deadline, timeoutNanos from now, counts from dispatch, so a wait
+         * for a turn uses up its timeout rather than extending it. With queueLimit tasks
+         * unfinished the command is refused with busy instead, and false returned.
+         */
+        boolean start(boolean clicks, long timeoutNanos, Consumer<Task> body) {
+            int unfinished = running.size();
+            int limit = queueLimit;
+            if (unfinished >= limit) {
+                refuse(unfinished, limit);
+                return false;
+            }
+            String id = commandId.get();
+            ResponseWriter session = commandOutput.get();
+            CommandTiming timing = commandTiming.get();
+            if (timing != null) timing.queued = true;
+            Task task = new Task(clicks, session, timeoutNanos);
+            running.add(task);
+            threads.execute(() -> {
+                task.thread = Thread.currentThread();
+                commandId.set(id);
+                commandOutput.set(session);
+                try {
+                    body.accept(task);
+                } catch (Exception e) {
+                    sendError("Command failed: " + e.getMessage());
+                } finally {
+                    running.remove(task);
+                    task.done.countDown();
+                    commandId.remove();
+                    commandOutput.remove();
+                    if (timing != null) timing.finish();
+                }
+            });
+            return true;
+        }
+        
+        /** The tasks not yet finished, for a command that must follow them. */
+        java.util.List<Task> snapshot() {
+            return new ArrayList<>(running);
+        }
+        
+        void cancelClicking() {
+            for (Task task : running) {
+                if (task.clicks) task.cancel();
+            }
+        }
+        
+        /** Cancels everything a daemon session started. */
+        void cancel(ResponseWriter session) {
+            for (Task task : running) {
+                if (task.session == session) task.cancel();
+            }
+        }
+        
+        private static ExecutorService newExecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                AtomicLong count = new AtomicLong();
+                return Executors.newCachedThreadPool(r -> {
+                    Thread thread = new Thread(r, "ccc-task-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MAX_PRIORITY);
+                    return thread;
+                });
+            }
+        }
+    }
+    
+    /** One command's task: its deadline, and a cancellation that cuts short any wait. */
+    static final class Task {
+        final boolean clicks;
+        final ResponseWriter session;
+        final long dispatched = System.nanoTime();
+        final long deadline;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Thread thread;
+        private volatile boolean cancelled = false;
+        private boolean waiting = false;
+        
+        Task(boolean clicks, ResponseWriter session, long timeoutNanos) {
+            this.clicks = clicks;
+            this.session = session;
+            this.deadline = dispatched + timeoutNanos;
+        }
+        
+        boolean cancelled() {
+            return cancelled;
+        }
+        
+        // Interrupts only ever land in acquire() or await(), never in a backend call
+        synchronized void cancel() {
+            cancelled = true;
+            Thread current = thread;
+            if (current == null) return;
+            if (waiting) {
+                current.interrupt();
+            } else {
+                LockSupport.unpark(current);
+            }
+        }
+        
+        /** Records how long the command waited before its work began. */
+        void begin() {
+            metrics.queue.record(System.nanoTime() - dispatched);
+        }
+        
+        /** Takes lock, waiting until the deadline at most; false if cancelled or out of time. */
+        boolean acquire(Lock lock, long deadlineNanos) {
+            if (!beginWait()) return false;
+            try {
+                return lock.tryLock(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                return false;
+            } finally {
+                endWait();
+            }
+        }
+        
+        /** Waits for another task to finish, until this one's deadline at most. */
+        boolean await(Task other) {
+            if (!beginWait()) return false;
+            try {
+                return other.done.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                return false;
+            } finally {
+                endWait();
+            }
+        }
+        
+        private synchronized boolean beginWait() {
+            if (cancelled) return false;
+            waiting = true;
+            return true;
+        }
+        
+        // Under the same lock as cancel(), so no interrupt can arrive after the wait is over
+        private synchronized void endWait() {
+            waiting = false;
+            Thread.interrupted();
+        }
+    }
+    
+    /**
+     * Log-linear latency histogram in the style of HdrHistogram: each power of two is
+     * split into 32 linear sub-buckets, so any recorded value is reported within about
+     * 3%, from 1ns up to about half an hour, in under 10KB. Recording is one array
+     * increment and never allocates or locks, so it is safe on every hot path.
+     */
+    static final class LatencyHistogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int MAX_SHIFT = 35;
+        private static final long MAX_VALUE = (2L << (MAX_SHIFT + SUB_BITS)) - 1;
+        
+        private final AtomicLongArray counts = new AtomicLongArray(SUB_COUNT * (MAX_SHIFT + 2));
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+        
+        void record(long nanos) {
+            long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+            counts.incrementAndGet(index(value));
+            total.incrementAndGet();
+            sum.addAndGet(value);
+            long seen;
+            while (value > (seen = max.get()) && !max.compareAndSet(seen, value)) {
+                // retry until the larger value sticks
+            }
+        }
+        
+        long count() {
+            return total.get();
+        }
+        
+        /** Value at or below which the given fraction of recordings fall, to bucket precision. */
+        long percentile(double fraction) {
+            long count = total.get();
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) return Math.min(highestValue(i), max.get());
+            }
+            return max.get();
+        }
+        
+        void reset() {
+            for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+            total.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+        
+        /** {"count":..,"meanMs":..,"p50Ms":..,"p90Ms":..,"p99Ms":..,"p999Ms":..,"maxMs":..} */
+        String toJson() {
+            long count = total.get();
+            return String.format(Locale.ROOT,
+                "{\"count\":%d,\"meanMs\":%.3f,\"p50Ms\":%.3f,\"p90Ms\":%.3f,\"p99Ms\":%.3f,\"p999Ms\":%.3f,\"maxMs\":%.3f}",
+                count, count > 0 ? sum.get() / 1e6 / count : 0.0, percentile(0.5) / 1e6, percentile(0.9) / 1e6,
+                percentile(0.99) / 1e6, percentile(0.999) / 1e6, max.get() / 1e6);
+        }
+        
+        // Values below SUB_COUNT are exact; above, the top SUB_BITS + 1 bits pick the bucket
+        private static int index(long value) {
+            if (value < SUB_COUNT) return (int) value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return SUB_COUNT * (shift + 1) + (int) (value >>> shift) - SUB_COUNT;
+        }
+        
+        private static long highestValue(int index) {
+            if (index < SUB_COUNT) return index;
+            int shift = index / SUB_COUNT - 1;
+            long lowest = (long) (index % SUB_COUNT + SUB_COUNT) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+    }
+    
+    /**
+     * Agent-wide instrumentation behind the STATS command: latency per command type
+     * (dispatch to completion, including time queued on a lane) and per phase, plus
+     * event counters. Phases are "parse" (decoding a command, excluding time blocked
+     * on stdin), "clipboard" (each clipboard backend read or write), "robot" (each
+     * input backend call), "output" (enqueue to encoded, per response), "queue"
+     * (dispatch until a lane or task command begins its work, a FLOW's wait for its
+     * turn included), "inputWait" (each click's wait for the input lane) and "sample"
+     * (each look at a button's pixels). skippedClicks counts clicks a button's state saved.
+     */
+    static final class Metrics {
+        final long startMillis = System.currentTimeMillis();
+        final LatencyHistogram parse = new LatencyHistogram();
+        final LatencyHistogram clipboard = new LatencyHistogram();
+        final LatencyHistogram robot = new LatencyHistogram();
+        final LatencyHistogram output = new LatencyHistogram();
+        final LatencyHistogram queue = new LatencyHistogram();
+        final LatencyHistogram inputWait = new LatencyHistogram();
+        final LatencyHistogram sample = new LatencyHistogram();
+        final LatencyHistogram contention = new LatencyHistogram();
+        final AtomicLong clipboardBusy = new AtomicLong();
+        final AtomicLong clipboardRetried = new AtomicLong();
+        final AtomicLong clipboardGaveUp = new AtomicLong();
+        final AtomicLong clicks = new AtomicLong();
+        final AtomicLong skippedClicks = new AtomicLong();
+        final AtomicLong refused = new AtomicLong();
+        final AtomicLong coalesced = new AtomicLong();
+        private final ConcurrentMap<String, LatencyHistogram> commands = new ConcurrentHashMap<>();
+        private ScheduledExecutorService dumper;
+        
+        LatencyHistogram command(String name) {
+            return commands.computeIfAbsent(name, k -> new LatencyHistogram());
+        }
+        
+        void reset() {
+            parse.reset();
+            clipboard.reset();
+            robot.reset();
+            output.reset();
+            queue.reset();
+            inputWait.reset();
+            sample.reset();
+            contention.reset();
+            clipboardBusy.set(0);
+            clipboardRetried.set(0);
+            clipboardGaveUp.set(0);
+            clicks.set(0);
+            skippedClicks.set(0);
+            refused.set(0);
+            coalesced.set(0);
+            for (LatencyHistogram histogram : commands.values()) histogram.reset();
+        }
+        
+        /** Logs toJson() to stderr every intervalMs; 0 stops the dump. */
+        synchronized void dumpEvery(long intervalMs) {
+            if (dumper != null) {
+                dumper.shutdownNow();
+                dumper = null;
+            }
+            if (intervalMs <= 0) return;
+            dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "ccc-stats");
+                thread.setDaemon(true);
+                return thread;
+            });
+            dumper.scheduleAtFixedRate(() -> log("Stats: " + toJson()), intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+        
+        String toJson() {
+            StringBuilder json = new StringBuilder(512);
+            json.append("\"uptimeMs\":").append(System.currentTimeMillis() - startMillis)
+                .append(",\"counters\":{\"clipboardBusy\":").append(clipboardBusy.get())
+                .append(",\"clipboardRetried\":").append(clipboardRetried.get())
+                .append(",\"clipboardGaveUp\":").append(clipboardGaveUp.get())
+                .append(",\"clicks\":").append(clicks.get())
+                .append(",\"skippedClicks\":").append(skippedClicks.get())
+                .append(",\"refused\":").append(refused.get())
+                .append(",\"coalesced\":").append(coalesced.get())
+                .append("},\"phases\":{\"parse\":").append(parse.toJson())
+                .append(",\"clipboard\":").append(clipboard.toJson())
+                .append(",\"robot\":").append(robot.toJson())
+                .append(",\"output\":").append(output.toJson())
+                .append(",\"queue\":").append(queue.toJson())
+                .append(",\"inputWait\":").append(inputWait.toJson())
+                .append(",\"sample\":").append(sample.toJson())
+                .append(",\"contention\":").append(contention.toJson())
+                .append("},\"commands\":{");
+            String separator = "";
+            for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(commands).entrySet()) {
+                json.append(separator).append('"').append(entry.getKey()).append("\":").append(entry.getValue().toJson());
+                separator = ",";
+            }
+            return json.append('}').toString();
+        }
+    }
+    
+    /**
+     * Watches the clipboard so changes are pushed to the coordinator instead of being
+     * discovered by GET_CLIPBOARD polling.
+     *
+     * The agent writes through setContents() and keeps clipboard ownership until
+     * another application (the browser bridge) replaces the contents; the backend's
+     * lost-ownership and change notifications wake the watcher immediately. A slow
+     * poll covers backends that deliver neither, and while we still own the clipboard
+     * the contents are known and never re-read.
+     */
+    static final class ClipboardWatcher implements Runnable {
+        private static final int DEFAULT_POLL_INTERVAL = 250;
+        // Someone is actively waiting on the next change, so poll harder
+        private static final int WAITER_POLL_INTERVAL = 50;
+        
+        private final ClipboardBackend clipboard;
+        private final Object lock = new Object();
+        private final Object writeLock = new Object();
+        private boolean owner = false;
+        private Ownership current = null;
+        private boolean signalled = false;
+        private int waiters = 0;
+        // One per session, keyed by its writer (null for stdin); a session subscribing again replaces its own
+        private final Map<ResponseWriter, Subscription> subscriptions = new HashMap<>();
+        private final java.util.List<DeltaStream> streams = new CopyOnWriteArrayList<>();
+        private int pollInterval = DEFAULT_POLL_INTERVAL;
+        private int lastLength = -1;
+        private int lastHash = 0;
+        private volatile long changeCount = 0;
+        private volatile String lastSeen = null;
+        
+        ClipboardWatcher(ClipboardBackend clipboard) {
+            this.clipboard = clipboard;
+        }
+        
+        void start() {
+            clipboard.onChange(this::changed);
+            Thread thread = new Thread(this, "ccc-clipboard-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        /**
+         * Starts emitting clipboard_changed events, optionally only for content containing
+         * match. With a stream id, that response's progress comes as clipboard_delta instead.
+         */
+        void subscribe(String match, int pollInterval, String stream) {
+            Subscription subscription = new Subscription(match, pollInterval > 0 ? pollInterval : DEFAULT_POLL_INTERVAL,
+                stream != null ? openStream(stream) : null);
+            synchronized (lock) {
+                Subscription replaced = subscriptions.put(subscription.session, subscription);
+                if (replaced != null && replaced.stream != null) streams.remove(replaced.stream);
+                updatePollInterval();
+                signalled = true;
+                lock.notifyAll();
+            }
+        }
+        
+        /** Ends the subscription of the session sending the command being handled. */
+        void unsubscribe() {
+            unsubscribe(commandOutput.get());
+        }
+        
+        /** Ends the given daemon session's subscription, if it has one, e.g. when it disconnects. */
+        void unsubscribe(ResponseWriter session) {
+            synchronized (lock) {
+                Subscription removed = subscriptions.remove(session);
+                if (removed != null && removed.stream != null) streams.remove(removed.stream);
+                updatePollInterval();
+            }
+        }
+        
+        // The most eager subscriber sets the pace
+        private void updatePollInterval() {
+            int interval = DEFAULT_POLL_INTERVAL;
+            for (Subscription subscription : subscriptions.values()) interval = Math.min(interval, subscription.pollInterval);
+            pollInterval = interval;
+        }
+        
+        /**
+         * Starts forwarding the progress of the response with this id to the command being
+         * handled, as deltas; the watcher must be kept running, by a subscription or a waiter.
+         */
+        DeltaStream openStream(String responseId) {
+            DeltaStream stream = new DeltaStream(responseId);
+            streams.add(stream);
+            return stream;
+        }
+        
+        void closeStream(DeltaStream stream) {
+            streams.remove(stream);
+        }
+        
+        /** Keeps the watcher running while a click loop waits on clipboard changes. */
+        void addWaiter() {
+            synchronized (lock) {
+                waiters++;
+                signalled = true;
+                lock.notifyAll();
+            }
+        }
+        
+        void removeWaiter() {
+            synchronized (lock) {
+                waiters--;
+            }
+        }
+        
+        boolean ownsClipboard() {
+            synchronized (lock) {
+                return owner;
+            }
+        }
+        
+        /** Fingerprint of what we last wrote while we still own the clipboard, else null. */
+        String ownedFingerprint() {
+            synchronized (lock) {
+                return owner ? fingerprint(lastLength, lastHash) : null;
+            }
+        }
+        
+        /** Most recent foreign clipboard content, or null if none has been seen. */
+        String lastSeen() {
+            return lastSeen;
+        }
+        
+        /** Number of foreign clipboard changes seen so far. */
+        long changeCount() {
+            return changeCount;
+        }
+        
+        /** Sets the clipboard and takes ownership, so our own write is not reported as a change. */
+        void setContents(String data) throws Exception {
+            setContents(ClipboardText.of(data));
+        }
+        
+        void setContents(ClipboardText data) throws Exception {
+            // Writes take turns, so what is recorded below is what is on the clipboard; lock
+            // itself is not held through the retries, leaving ownsClipboard() and the
+            // lost-ownership callback free meanwhile
+            synchronized (writeLock) {
+                Ownership write = new Ownership();
+                accessClipboard(() -> {
+                    clipboard.write(data, () -> lostOwnership(write));
+                    return null;
+                });
+                synchronized (lock) {
+                    // Something may already have replaced it between the write and here
+                    current = write;
+                    owner = !write.lost;
+                    lastLength = data.length();
+                    lastHash = data.hash();
+                    lastSeen = null;
+                }
+            }
+        }
+        
+        private void lostOwnership(Ownership write) {
+            synchronized (lock) {
+                write.lost = true;
+                if (current == write) owner = false;
+                signalled = true;
+                lock.notifyAll();
+            }
+        }
+        
+        // One setContents' hold on the clipboard; a late callback for an older write changes nothing
+        private static final class Ownership {
+            boolean lost = false;
+        }
+        
+        private void changed() {
+            synchronized (lock) {
+                signalled = true;
+                lock.notifyAll();
+            }
+        }
+        
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    synchronized (lock) {
+                        while (subscriptions.isEmpty() && waiters == 0) lock.wait();
+                        if (!signalled) lock.wait(waiters > 0 ? Math.min(pollInterval, WAITER_POLL_INTERVAL) : pollInterval);
+                        signalled = false;
+                        // While we own the clipboard it still holds what we wrote
+                        if (owner || (subscriptions.isEmpty() && waiters == 0)) continue;
+                    }
+                    checkForChange();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    // Clipboard may be held by another process; try again on the next wake-up
+                    log("Clipboard watch failed: " + e.getMessage());
+                }
+            }
+        }
+        
+        private void checkForChange() throws Exception {
+            String data = readClipboardText();
+            java.util.List<Subscription> notify;
+            synchronized (lock) {
+                if (data.length() == lastLength && data.hashCode() == lastHash) return;
+                lastLength = data.length();
+                lastHash = data.hashCode();
+                lastSeen = data;
+                changeCount++;
+                notify = new ArrayList<>(subscriptions.values());
+            }
+            // Progress a stream has forwarded as a delta is not pushed whole as well
+            if (!streams.isEmpty() && streamProgress(data)) return;
+            String fingerprint = null;
+            for (Subscription subscription : notify) {
+                if (!matches(data, subscription.match)) continue;
+                if (fingerprint == null) fingerprint = "\"fingerprint\":\"" + fingerprint(data.length(), data.hashCode()) + "\"";
+                commandId.set(subscription.id);
+                commandOutput.set(subscription.session);
+                sendResponse("clipboard_changed", data, fingerprint);
+            }
+        }
+        
+        // A session's SUBSCRIBE_CLIPBOARD: where its clipboard_changed events go, and which
+        private static final class Subscription {
+            final String id = commandId.get();
+            final ResponseWriter session = commandOutput.get();
+            final String match;
+            final int pollInterval;
+            final DeltaStream stream;
+            
+            Subscription(String match, int pollInterval, DeltaStream stream) {
+                this.match = match;
+                this.pollInterval = pollInterval;
+                this.stream = stream;
+            }
+        }
+        
+        // Hands a current BROWSER_PROGRESS to the streams following its response
+        private boolean streamProgress(String data) {
+            EnvelopeScanner.Envelope envelope = EnvelopeScanner.scan(data, "BROWSER_PROGRESS", null, System.currentTimeMillis());
+            if (envelope == null || envelope.id == null) return false;
+            if (!envelope.accepted()) {
+                log("Not streaming " + envelope.rejection + " progress for " + envelope.id);
+                return false;
+            }
+            String accumulated = null;
+            boolean streamed = false;
+            for (DeltaStream stream : streams) {
+                if (!stream.responseId.equals(envelope.id)) continue;
+                if (accumulated == null) accumulated = envelope.payloadString("accumulated");
+                if (accumulated == null) return false;
+                stream.deliver(accumulated);
+                streamed = true;
+            }
+            return streamed;
+        }
+        
+        // A match naming an envelope type only passes envelopes of it that are intact and current
+        private boolean matches(String data, String filter) {
+            if (filter == null) return true;
+            if (!EnvelopeScanner.isEnvelopeType(filter)) return data.contains(filter);
+            EnvelopeScanner.Envelope envelope = EnvelopeScanner.scan(data, filter, null, System.currentTimeMillis());
+            if (envelope != null && !envelope.accepted()) {
+                log("Not forwarding " + envelope.rejection + " " + filter + " " + envelope.id);
+            }
+            return envelope != null && envelope.accepted();
+        }
+    }
+    
+    /**
+     * One response's streamed text, forwarded as it grows (SPEC S4.3). The bridge puts the
+     * whole accumulated text in every BROWSER_PROGRESS, so pushing each one would cost the
+     * square of the response's length in bytes. A stream remembers how many characters it
+     * has delivered and the hash of that prefix, and sends only what has been appended:
+     *
+     *   {"type":"clipboard_delta","data":"<appended text>","responseId":"..","seq":3,
+     *    "offset":1200,"length":1480,"resync":false,"fingerprint":"1480-5e918d2"}
+     *
+     * offset is where data starts in the accumulated text and length is the text's new
+     * length; fingerprint is GET_CLIPBOARD's, of the whole accumulated text. Text that no
+     * longer starts with the delivered prefix is sent whole from offset 0 with resync set,
+     * and the receiver replaces what it has. Deltas of a stream are numbered by seq and
+     * sent in order, from the watcher thread, to the command that opened the stream.
+     */
+    static final class DeltaStream {
+        final String responseId;
+        private final Caller caller = new Caller();
+        private final String escapedId;
+        private int offset = 0;
+        private int hash = 0;
+        private int seq = 0;
+        
+        DeltaStream(String responseId) {
+            this.responseId = responseId;
+            escapedId = responseId.replace("\\", "\\\\").replace("\"", "\\\"");
+        }
+        
+        int deltas() {
+            return seq;
+        }
+        
+        // Only ever called on the watcher thread
+        void deliver(String text) {
+            int length = text.length();
+            int prefixHash = 0;
+            boolean appended = length >= offset;
+            if (appended) {
+                for (int i = 0; i < offset; i++) prefixHash = 31 * prefixHash + text.charAt(i);
+                appended = prefixHash == hash;
+            }
+            if (appended && length == offset) return;
+            int from = appended ? offset : 0;
+            int newHash = appended ? prefixHash : 0;
+            for (int i = from; i < length; i++) newHash = 31 * newHash + text.charAt(i);
+            
+            commandId.set(caller.id);
+            commandOutput.set(caller.session);
+            sendResponse("clipboard_delta", text.substring(from), "\"responseId\":\"" + escapedId + "\",\"seq\":" + seq
+                + ",\"offset\":" + from + ",\"length\":" + length + ",\"resync\":" + !appended
+                + ",\"fingerprint\":\"" + fingerprint(length, newHash) + "\"");
+            seq++;
+            offset = length;
+            hash = newHash;
+        }
+    }
+    
+    /**
+     * Chunked, compressed encoding for large clipboard messages (SPEC S4.1/S4.2).
+     *
+     * A message at or above compressThreshold is gzipped, Base64-encoded and split into
+     * chunkSize-character pieces. Each piece travels as its own clipboard message:
+     *
+     *   {"type":"CCC_CHUNK","id":"..","seq":0,"total":3,"encoding":"gzip+base64",
+     *    "size":1234567,"checksum":"crc32-..","chunkChecksum":"crc32-..","data":".."}|||CCC_END|||
+     *
+     * checksum covers the original UTF-8 bytes, chunkChecksum the piece itself. The
+     * browser answers in kind with BROWSER_CHUNK messages, which ChunkAssembler joins.
+     * Off unless CONFIGURE enables it, since the bridge has to understand the format.
+     */
+    static final class ClipboardTransport {
+        volatile boolean chunking = false;
+        volatile int chunkSize = 1024 * 1024;
+        volatile int compressThreshold = 64 * 1024;
+        
+        /** Returns the clipboard messages that carry text; just text itself when it is small. */
+        java.util.List<String> encode(String type, String id, String text) throws IOException {
+            if (!chunking || text.length() < compressThreshold) {
+                return Collections.singletonList(text);
+            }
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            String encoded = Base64.getEncoder().encodeToString(gzip(bytes));
+            String checksum = crc32(bytes, 0, bytes.length);
+            int size = chunkSize;
+            int total = (encoded.length() + size - 1) / size;
+            java.util.List<String> messages = new ArrayList<>(total);
+            for (int seq = 0; seq < total; seq++) {
+                String piece = encoded.substring(seq * size, Math.min(encoded.length(), (seq + 1) * size));
+                byte[] pieceBytes = piece.getBytes(StandardCharsets.US_ASCII);
+                // Base64 needs no JSON escaping, so the envelope can be built directly
+                StringBuilder message = new StringBuilder(piece.length() + 256);
+                message.append("{\"type\":\"").append(type)
+                       .append("\",\"id\":\"").append(id)
+                       .append("\",\"seq\":").append(seq)
+                       .append(",\"total\":").append(total)
+                       .append(",\"encoding\":\"gzip+base64\",\"size\":").append(bytes.length)
+                       .append(",\"checksum\":\"").append(checksum)
+                       .append("\",\"chunkChecksum\":\"").append(crc32(pieceBytes, 0, pieceBytes.length))
+                       .append("\",\"data\":\"").append(piece)
+                       .append("\"}|||CCC_END|||");
+                messages.add(message.toString());
+            }
+            return messages;
+        }
+        
+        static byte[] gzip(byte[] bytes) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, bytes.length / 4));
+            // Fastest level: on repetitive prompt text it compresses nearly as well and several times quicker
+            try (GZIPOutputStream gz = new GZIPOutputStream(out, 64 * 1024) {{ def.setLevel(Deflater.BEST_SPEED); }}) {
+                gz.write(bytes);
+            }
+            return out.toByteArray();
+        }
+        
+        static byte[] gunzip(byte[] bytes, int expectedSize) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, expectedSize));
+            try (GZIPInputStream gz = new GZIPInputStream(new ByteArrayInputStream(bytes), 64 * 1024)) {
+                byte[] buf = new byte[64 * 1024];
+                int n;
+                while ((n = gz.read(buf)) > 0) out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+        
+        static String crc32(byte[] bytes, int offset, int length) {
+            CRC32 crc = new CRC32();
+            crc.update(bytes, offset, length);
+            return String.format("crc32-%08x", crc.getValue());
+        }
+    }
+    
+    /**
+     * File side channel for oversized payloads (S4.4). Only a path, offset, length and
+     * checksum cross the pipe; the text is copied out of, or encoded straight into, a
+     * memory-mapped region, so it is never JSON-escaped or parsed, and only read as bytes
+     * until someone needs it as text. Checksums use the transport's "crc32-xxxxxxxx" form.
+     */
+    static final class MappedPayload {
+        private MappedPayload() {
+        }
+        
+        /**
+         * Reads length bytes of UTF-8 at offset (length < 0: to end of file), verifying checksum
+         * if given. The bytes are copied out of the mapping so it can be released straight away;
+         * callers decode them, or a ClipboardText holds them and decodes only if asked to.
+         */
+        static ByteBuffer readBytes(String path, long offset, long length, String checksum) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+                MappedByteBuffer region = map(channel, path, offset, length, checksum);
+                try {
+                    ByteBuffer bytes = ByteBuffer.allocate(region.remaining());
+                    bytes.put(region).flip();
+                    return bytes;
+                } finally {
+                    unmap(region);
+                }
+            }
+        }
+        
+        private static MappedByteBuffer map(FileChannel channel, String path, long offset, long length, String checksum)
+                throws IOException {
+            long size = length >= 0 ? length : channel.size() - offset;
+            if (offset < 0 || size < 0 || offset + size > channel.size() || size > Integer.MAX_VALUE) {
+                throw new IOException("region " + offset + "+" + size + " is outside " + path);
+            }
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+            if (checksum != null && !checksum.equals(crc32(region))) {
+                unmap(region);
+                throw new IOException("checksum mismatch for " + path);
+            }
+            return region;
+        }
+        
+        /**
+         * Writes text as UTF-8 at offset, creating or growing the file as needed, and returns
+         * the region as pre-rendered JSON members: "offset", "length" (bytes), "chars", "checksum".
+         */
+        static String write(String path, long offset, String text) throws IOException {
+            int length = ResponseWriter.utf8Length(text);
+            try (FileChannel channel = FileChannel.open(Paths.get(path),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, offset, length);
+                try {
+                    CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                    encoder.encode(CharBuffer.wrap(text), region, true);
+                    encoder.flush(region);
+                    region.flip();
+                    return String.format("\"offset\":%d,\"length\":%d,\"chars\":%d,\"checksum\":\"%s\"",
+                        offset, length, text.length(), crc32(region));
+                } finally {
+                    unmap(region);
+                }
+            }
+        }
+        
+        /**
+         * As write, but for text arriving as a UTF-8 stream of unknown length: it is copied
+         * to the file a buffer at a time, counting and checksumming as it goes, so the
+         * text is never held whole.
+         */
+        static String write(String path, long offset, InputStream utf8) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(path),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                channel.position(offset);
+                byte[] buffer = new byte[64 * 1024];
+                CRC32 crc = new CRC32();
+                long length = 0;
+                long chars = 0;
+                int n;
+                while ((n = utf8.read(buffer)) >= 0) {
+                    crc.update(buffer, 0, n);
+                    for (int i = 0; i < n; i++) {
+                        // A UTF-16 char per sequence, two for a four-byte one; continuation bytes add none
+                        int b = buffer[i] & 0xFF;
+                        if ((b & 0xC0) != 0x80) chars += b >= 0xF0 ? 2 : 1;
+                    }
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, n);
+                    while (chunk.hasRemaining()) channel.write(chunk);
+                    length += n;
+                }
+                return String.format("\"offset\":%d,\"length\":%d,\"chars\":%d,\"checksum\":\"crc32-%08x\"",
+                    offset, length, chars, crc.getValue());
+            }
+        }
+        
+        private static String crc32(ByteBuffer region) {
+            CRC32 crc = new CRC32();
+            crc.update(region.duplicate());
+            return String.format("crc32-%08x", crc.getValue());
+        }
+        
+        // Releases the mapping now rather than at some later GC, so the coordinator can delete
+        // or reuse the file (Windows refuses both while a mapping is open). Best effort.
+        private static void unmap(MappedByteBuffer region) {
+            try {
+                // Java 9+
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                java.lang.reflect.Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), region);
+                return;
+            } catch (ReflectiveOperationException e) {
+                // fall through to the Java 8 cleaner
+            }
+            try {
+                java.lang.reflect.Method cleanerMethod = region.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(region);
+                if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // left to the garbage collector
+            }
+        }
+    }
+    
+    /**
+     * Collects *_CHUNK messages for one id and rebuilds the original text once every
+     * piece has arrived. Repeated pieces (the bridge re-writing the same chunk) are ignored.
+     */
+    static final class ChunkAssembler {
+        private final String expectedId;
+        private String[] pieces;
+        private int received = 0;
+        private int size;
+        private String checksum;
+        
+        ChunkAssembler(String expectedId) {
+            this.expectedId = expectedId;
+        }
+        
+        /** Feeds one clipboard message; returns the reassembled text when it completes the set. */
+        String accept(String message) {
+            Map<String, Object> chunk;
+            try {
+                int end = message.indexOf("|||");
+                byte[] json = (end >= 0 ? message.substring(0, end) : message).getBytes(StandardCharsets.UTF_8);
+                chunk = new CommandReader(new ByteArrayInputStream(json)).next();
+            } catch (IOException | IllegalArgumentException e) {
+                log("Ignoring malformed chunk: " + e.getMessage());
+                return null;
+            }
+            if (chunk == null || !String.valueOf(chunk.get("type")).endsWith("_CHUNK")) return null;
+            if (expectedId != null && !expectedId.equals(chunk.get("id"))) return null;
+            
+            int seq = parseInt(chunk.get("seq"));
+            int total = parseInt(chunk.get("total"));
+            String piece = (String) chunk.get("data");
+            if (total <= 0 || seq < 0 || seq >= total || piece == null) return null;
+            byte[] pieceBytes = piece.getBytes(StandardCharsets.US_ASCII);
+            if (!ClipboardTransport.crc32(pieceBytes, 0, pieceBytes.length).equals(chunk.get("chunkChecksum"))) {
+                log("Dropping corrupt chunk " + seq + "/" + total);
+                return null;
+            }
+            if (pieces == null || pieces.length != total) {
+                pieces = new String[total];
+                received = 0;
+                size = parseInt(chunk.get("size"));
+                checksum = (String) chunk.get("checksum");
+            }
+            if (pieces[seq] != null) return null;
+            pieces[seq] = piece;
+            if (++received < total) return null;
+            
+            StringBuilder encoded = new StringBuilder();
+            for (String p : pieces) encoded.append(p);
+            pieces = null;
+            try {
+                byte[] bytes = ClipboardTransport.gunzip(Base64.getDecoder().decode(encoded.toString()), size);
+                if (!ClipboardTransport.crc32(bytes, 0, bytes.length).equals(checksum)) {
+                    throw new IllegalStateException("chunked message failed checksum");
+                }
+                return new String(bytes, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new IllegalStateException("chunked message failed to decompress: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Serializes every response on one writer thread.
+     *
+     * Producers (the reader, the lanes, the clipboard watcher) only append to a lock-free
+     * queue, so none of them blocks on output or on each other, and whole responses can
+     * never interleave. The writer encodes each one as UTF-8 straight into a reusable
+     * buffer, escaping as it goes, and writes to the channel only when the buffer fills or
+     * the queue runs dry, so a burst of responses costs one write rather than a flush each.
+     *
+     * In framed mode a response is big-endian int32 header length, int32 payload length,
+     * the UTF-8 JSON header, then content data as the raw UTF-8 payload. Framing switches
+     * travel through the queue too, so they land exactly between the responses around them.
+     */
+    static final class ResponseWriter implements Runnable {
+        private static final int RESPONSE = 0, ERROR = 1, FRAMED = 2, JSON_LINES = 3;
+        private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+        
+        private final WritableByteChannel channel;
+        private final LatencyHistogram latency;
+        private final Queue<Response> queue = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        // Framed headers are built here first, since their length precedes them
+        private ByteBuffer header = ByteBuffer.allocate(1024);
+        private ByteBuffer target = buffer;
+        private final byte[] digits = new byte[20];
+        private final Thread thread;
+        private volatile boolean parked = false;
+        private volatile boolean closed = false;
+        private boolean framed = false;
+        
+        ResponseWriter(WritableByteChannel channel, String name, LatencyHistogram latency) {
+            this.channel = channel;
+            this.latency = latency;
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        // fields is an optional pre-rendered list of extra JSON members, e.g. "\"clicks\":3"
+        void send(String type, String data, String fields, String id) {
+            enqueue(new Response(RESPONSE, type, data, fields, id));
+        }
+        
+        void error(String message, String fields, String id) {
+            enqueue(new Response(ERROR, "error", message, fields, id));
+        }
+        
+        // Responses queued after this call are written framed (true) or as JSON lines
+        void setFramed(boolean framed) {
+            enqueue(new Response(framed ? FRAMED : JSON_LINES, null, null, null, null));
+        }
+        
+        // Writes out whatever is queued, then stops the writer
+        void close() {
+            closed = true;
+            LockSupport.unpark(thread);
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        private void enqueue(Response response) {
+            // A closed daemon session has nobody left to read late responses
+            if (closed) return;
+            queue.offer(response);
+            if (parked) LockSupport.unpark(thread);
+        }
+        
+        @Override
+        public void run() {
+            while (true) {
+                Response response = queue.poll();
+                if (response == null) {
+                    drain();
+                    if (closed && queue.isEmpty()) return;
+                    parked = true;
+                    if (queue.isEmpty() && !closed) LockSupport.park(this);
+                    parked = false;
+                    continue;
+                }
+                if (response.kind == FRAMED || response.kind == JSON_LINES) {
+                    framed = response.kind == FRAMED;
+                } else {
+                    if (framed) {
+                        writeFrame(response);
+                    } else {
+                        writeLine(response);
+                    }
+                    latency.record(System.nanoTime() - response.enqueued);
+                }
+            }
+        }
+        
+        private static boolean isContent(Response response) {
+            return response.kind == RESPONSE && response.data != null && !response.data.isEmpty()
+                && ("clipboard_content".equals(response.type) || "clipboard_changed".equals(response.type)
+                    || "flow_complete".equals(response.type));
+        }
+        
+        private void writeLine(Response response) {
+            writeJson(response, true);
+            put((byte) '\n');
+        }
+        
+        private void writeFrame(Response response) {
+            boolean content = isContent(response);
+            header.clear();
+            target = header;
+            writeJson(response, !content);
+            target = buffer;
+            header.flip();
+            if (buffer.remaining() < 8) drain();
+            buffer.putInt(header.remaining());
+            buffer.putInt(content ? utf8Length(response.data) : 0);
+            while (header.hasRemaining()) {
+                if (!buffer.hasRemaining()) drain();
+                int n = Math.min(buffer.remaining(), header.remaining());
+                int end = header.position() + n;
+                ByteBuffer slice = header.duplicate();
+                slice.limit(end);
+                buffer.put(slice);
+                header.position(end);
+            }
+            if (content) putUtf8(response.data, false);
+        }
+        
+        private void writeJson(Response response, boolean withData) {
+            putAscii("{\"type\":\"");
+            putAscii(response.type);
+            put((byte) '"');
+            // Framed content leaves the data member out; its value is the payload
+            if (response.kind == ERROR || withData) {
+                putAscii(response.kind == ERROR ? ",\"error\":\"" : ",\"data\":\"");
+                if (response.data != null) putUtf8(response.data, true);
+                put((byte) '"');
+            }
+            if (response.id != null) {
+                putAscii(",\"id\":\"");
+                putUtf8(response.id, true);
+                put((byte) '"');
+            }
+            if (response.fields != null) {
+                put((byte) ',');
+                putUtf8(response.fields, false);
+            }
+            putAscii(",\"timestamp\":");
+            putLong(response.timestamp);
+            put((byte) '}');
+        }
+        
+        private void put(byte b) {
+            if (!target.hasRemaining()) overflow();
+            target.put(b);
+        }
+        
+        private void putAscii(String s) {
+            for (int i = 0; i < s.length(); i++) put((byte) s.charAt(i));
+        }
+        
+        private void putLong(long value) {
+            if (value < 0) {
+                put((byte) '-');
+                value = -value;
+            }
+            int n = 0;
+            do {
+                digits[n++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            while (n > 0) put(digits[--n]);
+        }
+        
+        // Encodes s as UTF-8, JSON-escaped if asked; a lone surrogate becomes '?'
+        private void putUtf8(String s, boolean escape) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    if (escape && (c == '"' || c == '\\')) {
+                        put((byte) '\\');
+                        put((byte) c);
+                    } else if (escape && c < 0x20) {
+                        putControl(c);
+                    } else {
+                        put((byte) c);
+                    }
+                } else if (c < 0x800) {
+                    put((byte) (0xC0 | (c >> 6)));
+                    put((byte) (0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    put((byte) (0xF0 | (cp >> 18)));
+                    put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                    put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                    put((byte) (0x80 | (cp & 0x3F)));
+                } else if (Character.isSurrogate(c)) {
+                    put((byte) '?');
+                } else {
+                    put((byte) (0xE0 | (c >> 12)));
+                    put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                    put((byte) (0x80 | (c & 0x3F)));
+                }
+            }
+        }
+        
+        private void putControl(char c) {
+            put((byte) '\\');
+            switch (c) {
+                case '\n': put((byte) 'n'); break;
+                case '\r': put((byte) 'r'); break;
+                case '\t': put((byte) 't'); break;
+                case '\b': put((byte) 'b'); break;
+                case '\f': put((byte) 'f'); break;
+                default:
+                    putAscii("u00");
+                    put(HEX[c >> 4]);
+                    put(HEX[c & 0xF]);
+            }
+        }
+        
+        private void overflow() {
+            if (target == buffer) {
+                drain();
+            } else {
+                ByteBuffer grown = ByteBuffer.allocate(header.capacity() * 2);
+                header.flip();
+                grown.put(header);
+                header = grown;
+                target = grown;
+            }
+        }
+        
+        private void drain() {
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) channel.write(buffer);
+            } catch (IOException e) {
+                log("Failed to write response: " + e.getMessage());
+            }
+            buffer.clear();
+        }
+        
+        // UTF-8 length as putUtf8 will produce it unescaped
+        static int utf8Length(String s) {
+            int length = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    length++;
+                } else if (c < 0x800) {
+                    length += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else if (Character.isSurrogate(c)) {
+                    length++;
+                } else {
+                    length += 3;
+                }
+            }
+            return length;
+        }
+        
+        private static final class Response {
+            final int kind;
+            final String type;
+            final String data;
+            final String fields;
+            final String id;
+            final long timestamp = System.currentTimeMillis();
+            final long enqueued = System.nanoTime();
+            
+            Response(int kind, String type, String data, String fields, String id) {
+                this.kind = kind;
+                this.type = type;
+                this.data = data;
+                this.fields = fields;
+                this.id = id;
+            }
+        }
+    }
+    
+    /**
+     * The --daemon server: accepts loopback TCP connections and reads every session on one
+     * selector thread. Each session gets its own response writer, and its commands go
+     * through the same dispatch as stdin, so the clipboard, the mouse and the lanes have a
+     * single owner however many clients attach, and a client that reconnects finds the
+     * JVM, the Robot and the tray already warm. Sessions speak JSON lines, one command per
+     * line; responses, including completions and clipboard_changed events, go back to the
+     * session whose command produced them.
+     */
+    static final class Daemon {
+        private final Selector selector;
+        private final ServerSocketChannel server;
+        private final ByteBuffer received = ByteBuffer.allocateDirect(64 * 1024);
+        private int sessions = 0;
+        
+        Daemon(int port) throws IOException {
+            selector = Selector.open();
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        }
+        
+        int port() {
+            return server.socket().getLocalPort();
+        }
+        
+        void run() throws IOException {
+            while (true) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read(key);
+                    }
+                }
+            }
+        }
+        
+        private void accept() throws IOException {
+            SocketChannel channel = server.accept();
+            if (channel == null) return;
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Session session = new Session(channel, ++sessions);
+            channel.register(selector, SelectionKey.OP_READ, session);
+            log("Session " + session.number + " connected");
+        }
+        
+        private void read(SelectionKey key) {
+            Session session = (Session) key.attachment();
+            int n;
+            received.clear();
+            try {
+                n = session.channel.read(received);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                key.cancel();
+                session.close();
+                log("Session " + session.number + " disconnected");
+                return;
+            }
+            received.flip();
+            session.receive(received);
+        }
+    }
+    
+    /**
+     * One daemon connection: collects bytes into lines and dispatches each complete one.
+     * Each line gets a reader of its own, so a malformed command cannot desynchronize
+     * the ones after it.
+     */
+    static final class Session {
+        // A line buffer that grew past this is dropped so one huge payload isn't pinned forever
+        private static final int MAX_RETAINED_LINE = 1 << 20;
+        
+        final int number;
+        final SocketChannel channel;
+        private final SocketOutput output;
+        private final ResponseWriter writer;
+        private byte[] line = new byte[1024];
+        private int lineLength = 0;
+        
+        Session(SocketChannel channel, int number) {
+            this.channel = channel;
+            this.number = number;
+            output = new SocketOutput(channel);
+            writer = new ResponseWriter(output, "ccc-session-" + number, metrics.output);
+        }
+        
+        void receive(ByteBuffer bytes) {
+            while (bytes.hasRemaining()) {
+                int start = bytes.position();
+                int end = start;
+                while (end < bytes.limit() && bytes.get(end) != '\n') end++;
+                append(bytes, end - start);
+                if (end == bytes.limit()) return;
+                bytes.get();
+                dispatch();
+                lineLength = 0;
+                if (line.length > MAX_RETAINED_LINE) line = new byte[1024];
+            }
+        }
+        
+        private void append(ByteBuffer bytes, int n) {
+            if (lineLength + n > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + n));
+            }
+            bytes.get(line, lineLength, n);
+            lineLength += n;
+        }
+        
+        private void dispatch() {
+            commandOutput.set(writer);
+            try {
+                long parseStart = System.nanoTime();
+                Map<String, Object> cmd;
+                try {
+                    InputStream in = new ByteArrayInputStream(line, 0, lineLength);
+                    cmd = new CommandReader(in, Math.min(Math.max(lineLength, 1), 64 * 1024)).next();
+                } catch (IllegalArgumentException | IOException e) {
+                    sendError("Invalid command: " + e.getMessage());
+                    return;
+                }
+                // Blank line
+                if (cmd == null) return;
+                metrics.parse.record(System.nanoTime() - parseStart);
+                processCommand(cmd);
+            } finally {
+                commandOutput.remove();
+            }
+        }
+        
+        // Called on the selector thread, so the wait for the writer to flush (up to a
+        // second, for a client that stopped reading) happens on a thread of its own
+        void close() {
+            watcher.unsubscribe(writer);
+            tasks.cancel(writer);
+            Thread closer = new Thread(() -> {
+                writer.close();
+                try {
+                    output.close();
+                    channel.close();
+                } catch (IOException e) {
+                    log("Failed to close session " + number + ": " + e.getMessage());
+                }
+            }, "ccc-session-" + number + "-close");
+            closer.setDaemon(true);
+            closer.start();
+        }
+    }
+    
+    /**
+     * A session's non-blocking socket as the blocking channel ResponseWriter expects:
+     * when the socket buffer is full, the session's writer thread waits for the client
+     * to drain it rather than spinning.
+     */
+    static final class SocketOutput implements WritableByteChannel {
+        private final SocketChannel channel;
+        private Selector writable;
+        
+        SocketOutput(SocketChannel channel) {
+            this.channel = channel;
+        }
+        
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int n = channel.write(src);
+            if (n == 0 && src.hasRemaining()) {
+                if (writable == null) {
+                    writable = Selector.open();
+                    channel.register(writable, SelectionKey.OP_WRITE);
+                }
+                writable.select(100);
+                writable.selectedKeys().clear();
+            }
+            return n;
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if (writable != null) writable.close();
+        }
+    }
+    
+    /**
+     * Where the clipboard lives. Reads and writes may throw IllegalStateException when
+     * another application has the clipboard open, which the agent counts as busy.
+     */
+    interface ClipboardBackend {
+        /** The clipboard text, or "" if it holds something else. */
+        String read() throws Exception;
+        
+        /**
+         * The clipboard text as UTF-8, for a reader that wants to copy it somewhere rather
+         * than hold it. A backend that can hand it over as a stream does; by default it is
+         * read whole and encoded as the stream is read.
+         */
+        default InputStream readUtf8() throws Exception {
+            return new Utf8Stream(read());
+        }
+        
+        /** Replaces the clipboard text; lostOwnership runs once something else replaces it. */
+        void write(String text, Runnable lostOwnership) throws Exception;
+        
+        /**
+         * As write, for text that may be held as UTF-8. A backend that can render it on
+         * demand offers it as it is; by default it is decoded to a String first.
+         */
+        default void write(ClipboardText text, Runnable lostOwnership) throws Exception {
+            write(text.toString(), lostOwnership);
+        }
+        
+        /** Registers a hint that the clipboard may have changed; a backend that cannot tell never calls it. */
+        void onChange(Runnable listener);
+    }
+    
+    /** Where clicks go. Moves and clicks come from one task at a time, holding the input lane. */
+    interface InputBackend {
+        Point position();
+        
+        void move(int x, int y);
+        
+        void press();
+        
+        void release();
+        
+        /**
+         * The screen's pixels in the given rectangle as 0xRRGGBB, row by row, or null if this
+         * backend cannot see the screen.
+         */
+        default int[] capture(int x, int y, int width, int height) {
+            return null;
+        }
+        
+        /**
+         * Average colour, as 0xRRGGBB, of the square of side 2 * radius + 1 centred on (x, y),
+         * or -1 if this backend cannot see the screen.
+         */
+        default int sample(int x, int y, int radius) {
+            int side = 2 * radius + 1;
+            int[] pixels = capture(x - radius, y - radius, side, side);
+            if (pixels == null) return -1;
+            long red = 0, green = 0, blue = 0;
+            for (int pixel : pixels) {
+                red += (pixel >> 16) & 0xFF;
+                green += (pixel >> 8) & 0xFF;
+                blue += pixel & 0xFF;
+            }
+            int count = pixels.length;
+            return (int) (red / count) << 16 | (int) (green / count) << 8 | (int) (blue / count);
+        }
+    }
+    
+    /**
+     * Clipboard text as a Transferable that renders on demand. It is held in the form it
+     * arrived in, a String or the UTF-8 bytes of a file region, and turned into the other
+     * only when someone asks for it: a paste of file-borne text decodes it then, and a
+     * UTF-8 stream of a String is encoded a buffer at a time as it is read. Either way its
+     * length and hash, the clipboard fingerprint, are known from the start.
+     */
+    static final class ClipboardText implements Transferable {
+        static final DataFlavor UTF8_STREAM =
+            new DataFlavor("text/plain;charset=UTF-8;class=java.io.InputStream", "UTF-8 text");
+        
+        private final String text;
+        private final ByteBuffer utf8;
+        private final int length;
+        private final int hash;
+        
+        private ClipboardText(String text, ByteBuffer utf8, int length, int hash) {
+            this.text = text;
+            this.utf8 = utf8;
+            this.length = length;
+            this.hash = hash;
+        }
+        
+        static ClipboardText of(String text) {
+            return new ClipboardText(text, null, text.length(), text.hashCode());
+        }
+        
+        /**
+         * Text from UTF-8 bytes, which it keeps rather than a decoded copy. They are decoded
+         * once here, a buffer at a time, for the length and hash the String would have.
+         */
+        static ClipboardText ofUtf8(ByteBuffer utf8) {
+            CharsetDecoder decoder = decoder();
+            ByteBuffer in = utf8.duplicate();
+            CharBuffer out = CharBuffer.allocate(8192);
+            int length = 0;
+            int hash = 0;
+            boolean done = false;
+            while (true) {
+                CoderResult result = done ? decoder.flush(out) : decoder.decode(in, out, true);
+                out.flip();
+                length += out.remaining();
+                while (out.hasRemaining()) hash = 31 * hash + out.get();
+                out.clear();
+                if (result.isUnderflow()) {
+                    if (done) break;
+                    done = true;
+                }
+            }
+            return new ClipboardText(null, utf8, length, hash);
+        }
+        
+        /** UTF-8 decoding as everywhere in the agent: malformed input reads as U+FFFD. */
+        static CharsetDecoder decoder() {
+            return StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        
+        /** Length in UTF-16 chars, as String.length(). */
+        int length() {
+            return length;
+        }
+        
+        /** As String.hashCode(). */
+        int hash() {
+            return hash;
+        }
+        
+        InputStream openUtf8() {
+            if (text != null) return new Utf8Stream(text);
+            ByteBuffer bytes = utf8.duplicate();
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return bytes.hasRemaining() ? bytes.get() & 0xFF : -1;
+                }
+                
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (len == 0) return 0;
+                    if (!bytes.hasRemaining()) return -1;
+                    int n = Math.min(len, bytes.remaining());
+                    bytes.get(b, off, n);
+                    return n;
+                }
+                
+                @Override
+                public int available() {
+                    return bytes.remaining();
+                }
+            };
+        }
+        
+        /** The text; decoded afresh each time if it is held as UTF-8. */
+        @Override
+        public String toString() {
+            if (text != null) return text;
+            try {
+                return decoder().decode(utf8.duplicate()).toString();
+            } catch (CharacterCodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        
+        @Override
+        public DataFlavor[] getTransferDataFlavors() {
+            return new DataFlavor[] {UTF8_STREAM, DataFlavor.stringFlavor};
+        }
+        
+        @Override
+        public boolean isDataFlavorSupported(DataFlavor flavor) {
+            return UTF8_STREAM.equals(flavor) || DataFlavor.stringFlavor.equals(flavor);
+        }
+        
+        @Override
+        public Object getTransferData(DataFlavor flavor) throws UnsupportedFlavorException {
+            if (UTF8_STREAM.equals(flavor)) return openUtf8();
+            if (DataFlavor.stringFlavor.equals(flavor)) return toString();
+            throw new UnsupportedFlavorException(flavor);
+        }
+    }
+    
+    /** Text as a UTF-8 stream, encoded a buffer at a time as it is read rather than all at once. */
+    static final class Utf8Stream extends InputStream {
+        private final CharBuffer chars;
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer bytes = ByteBuffer.allocate(8192);
+        private boolean done = false;
+        
+        Utf8Stream(CharSequence text) {
+            chars = CharBuffer.wrap(text);
+            bytes.flip();
+        }
+        
+        @Override
+        public int read() {
+            return bytes.hasRemaining() || fill() ? bytes.get() & 0xFF : -1;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!bytes.hasRemaining() && !fill()) return -1;
+            int n = Math.min(len, bytes.remaining());
+            bytes.get(b, off, n);
+            return n;
+        }
+        
+        private boolean fill() {
+            while (!done) {
+                bytes.clear();
+                if (encoder.encode(chars, bytes, true).isUnderflow()) {
+                    encoder.flush(bytes);
+                    done = true;
+                }
+                bytes.flip();
+                if (bytes.hasRemaining()) return true;
+            }
+            return false;
+        }
+    }
+    
+    /**
+     * The desktop: the system clipboard, and a Robot for the mouse. Both start in parallel
+     * in the background, so the agent can answer PING, STATS and the like while AWT is
+     * still coming up; the first call that needs one waits for it.
+     */
+    static final class AwtBackend implements ClipboardBackend, InputBackend, ClipboardOwner {
+        private final CompletableFuture<Clipboard> clipboard =
+            CompletableFuture.supplyAsync(() -> Toolkit.getDefaultToolkit().getSystemClipboard(), AwtBackend::startThread);
+        private final CompletableFuture<Robot> robot = CompletableFuture.supplyAsync(() -> {
+            try {
+                return new Robot();
+            } catch (AWTException e) {
+                throw new CompletionException(e);
+            }
+        }, AwtBackend::startThread);
+        private volatile Runnable owner;
+        private int[] samplePixels = new int[0];
+        
+        /** Waits for AWT to start, throwing what it failed with. */
+        void awaitReady() throws Exception {
+            clipboard();
+            robot();
+        }
+        
+        private Clipboard clipboard() throws Exception {
+            return await(clipboard);
+        }
+        
+        private Robot robot() {
+            try {
+                return await(robot);
+            } catch (Exception e) {
+                throw new IllegalStateException("Robot unavailable: " + e.getMessage(), e);
+            }
+        }
+        
+        private static <T> T await(CompletableFuture<T> future) throws Exception {
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) throw (Exception) cause;
+                throw e;
+            }
+        }
+        
+        private static void startThread(Runnable task) {
+            Thread thread = new Thread(task, "ccc-awt-init");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        // getData fetches the one format asked for; getContents would copy every format
+        // the owner offers out of the native clipboard first
+        @Override
+        public String read() throws Exception {
+            Clipboard system = clipboard();
+            try {
+                if (system.isDataFlavorAvailable(DataFlavor.stringFlavor)) {
+                    return (String) system.getData(DataFlavor.stringFlavor);
+                }
+            } catch (UnsupportedFlavorException e) {
+                // replaced by something else between the two calls
+            }
+            return "";
+        }
+        
+        // Our own ClipboardText streams straight out of what it holds; other text comes
+        // through the toolkit's UTF-8 stream flavor, or failing that as a String
+        @Override
+        public InputStream readUtf8() throws Exception {
+            Clipboard system = clipboard();
+            try {
+                if (system.isDataFlavorAvailable(ClipboardText.UTF8_STREAM)) {
+                    return (InputStream) system.getData(ClipboardText.UTF8_STREAM);
+                }
+            } catch (UnsupportedFlavorException e) {
+                // replaced by something else between the two calls
+            }
+            return new Utf8Stream(read());
+        }
+        
+        @Override
+        public void write(String text, Runnable lostOwnership) throws Exception {
+            write(ClipboardText.of(text), lostOwnership);
+        }
+        
+        @Override
+        public void write(ClipboardText text, Runnable lostOwnership) throws Exception {
+            owner = lostOwnership;
+            // Writing again as the same owner does not count as losing ownership
+            clipboard().setContents(text, this);
+        }
+        
+        @Override
+        public void onChange(Runnable listener) {
+            // Registered once the clipboard is up; nothing can change it before we read it anyway
+            clipboard.thenAccept(c -> c.addFlavorListener(e -> listener.run()));
+        }
+        
+        @Override
+        public void lostOwnership(Clipboard clipboard, Transferable contents) {
+            Runnable lost = owner;
+            if (lost != null) lost.run();
+        }
+        
+        @Override
+        public Point position() {
+            return MouseInfo.getPointerInfo().getLocation();
+        }
+        
+        @Override
+        public void move(int x, int y) {
+            robot().mouseMove(x, y);
+        }
+        
+        @Override
+        public void press() {
+            robot().mousePress(InputEvent.BUTTON1_DOWN_MASK);
+        }
+        
+        @Override
+        public void release() {
+            robot().mouseRelease(InputEvent.BUTTON1_DOWN_MASK);
+        }
+        
+        @Override
+        public int[] capture(int x, int y, int width, int height) {
+            BufferedImage image = robot().createScreenCapture(new Rectangle(x, y, width, height));
+            int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+            for (int i = 0; i < pixels.length; i++) pixels[i] &= 0xFFFFFF;
+            return pixels;
+        }
+        
+        // Gating samples every click: a few pixels into a reused buffer, one getPixelColor
+        // when the radius is 0, rather than a fresh array per capture
+        @Override
+        public synchronized int sample(int x, int y, int radius) {
+            if (radius == 0) return robot().getPixelColor(x, y).getRGB() & 0xFFFFFF;
+            int side = 2 * radius + 1;
+            int count = side * side;
+            BufferedImage capture = robot().createScreenCapture(new Rectangle(x - radius, y - radius, side, side));
+            if (samplePixels.length < count) samplePixels = new int[count];
+            capture.getRGB(0, 0, side, side, samplePixels, 0, side);
+            long red = 0, green = 0, blue = 0;
+            for (int i = 0; i < count; i++) {
+                red += (samplePixels[i] >> 16) & 0xFF;
+                green += (samplePixels[i] >> 8) & 0xFF;
+                blue += samplePixels[i] & 0xFF;
+            }
+            return (int) (red / count) << 16 | (int) (green / count) << 8 | (int) (blue / count);
+        }
+    }
+    
+    /**
+     * Clipboard and input in process, with a peer function standing in for the browser
+     * bridge. A write hands over the String itself, with no Transferable in between and
+     * nothing copied; a click lets the peer answer by replacing it. The default peer
+     * answers each current CCC_REQUEST with a BROWSER_RESPONSE for its id that carries
+     * the request back as its payload.
+     */
+    static final class LoopbackBackend implements ClipboardBackend, InputBackend {
+        private final UnaryOperator<String> peer;
+        private final java.util.List<Runnable> listeners = new CopyOnWriteArrayList<>();
+        private final Point position = new Point();
+        private String contents = "";
+        private Runnable owner;
+        
+        LoopbackBackend() {
+            this(LoopbackBackend::echo);
+        }
+        
+        /** peer gets the clipboard text on each click and returns what it writes, or null. */
+        LoopbackBackend(UnaryOperator<String> peer) {
+            this.peer = peer;
+        }
+        
+        @Override
+        public synchronized String read() {
+            return contents;
+        }
+        
+        @Override
+        public synchronized void write(String text, Runnable lostOwnership) {
+            contents = text;
+            owner = lostOwnership;
+        }
+        
+        @Override
+        public void onChange(Runnable listener) {
+            listeners.add(listener);
+        }
+        
+        @Override
+        public synchronized Point position() {
+            return new Point(position);
+        }
+        
+        @Override
+        public synchronized void move(int x, int y) {
+            position.setLocation(x, y);
+        }
+        
+        @Override
+        public void press() {
+            String answer = peer.apply(read());
+            if (answer == null) return;
+            Runnable lost;
+            synchronized (this) {
+                contents = answer;
+                lost = owner;
+                owner = null;
+            }
+            if (lost != null) lost.run();
+            for (Runnable listener : listeners) listener.run();
+        }
+        
+        @Override
+        public void release() {
+        }
+        
+        static String echo(String clipboard) {
+            EnvelopeScanner.Envelope request = EnvelopeScanner.scan(clipboard, "CCC_REQUEST", null, System.currentTimeMillis());
+            if (request == null || !request.accepted() || request.id == null) return null;
+            return "{\"type\":\"BROWSER_RESPONSE\",\"id\":\"" + request.id + "\",\"timestamp\":" + System.currentTimeMillis()
+                + ",\"status\":\"success\",\"payload\":{\"request\":" + request.json() + "}}|||BROWSER_END|||";
+        }
+    }
+}
@@ -1,47 +1,48 @@
 import java.awt.*;
 import java.awt.datatransfer.*;
-import java.awt.event.InputEvent;
 import java.awt.image.BufferedImage;
-import java.io.*;
 import java.util.*;
-import java.util.concurrent.*;
-import javax.swing.*;
 
+/**
+ * The desktop agent: AgentCore on the system clipboard and a Robot, with a tray icon
+ * showing the coordinator's status. Serves the coordinator on stdin/stdout, or with
+ * --daemon [port] stays up as a loopback TCP server that clients attach to.
+ */
 public class ClipboardAgent {
-    private static Clipboard clipboard;
-    private static Robot robot;
-    private static String savedClipboard = "";
-    private static Point savedMousePosition = new Point(0, 0);
-    private static volatile boolean stopClicking = false;
-    private static TrayIcon trayIcon;
-    private static ExecutorService executor;
-    
     public static void main(String[] args) {
-        try {
-            // Initialize components
-            clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
-            robot = new Robot();
-            executor = Executors.newSingleThreadExecutor();
-            
-            // Setup system tray
-            setupSystemTray();
-            
-            // Process commands from stdin
-            Scanner scanner = new Scanner(System.in);
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine();
-                processCommand(line);
+        if (args.length > 0 && "--bench-transport".equals(args[0])) {
+            runTransportBenchmark(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        AgentCore.openStdio("Agent");
+        // AWT starts in the background while commands are already served; the tray
+        // follows it, off the critical path to the first response
+        AgentCore.AwtBackend desktop = new AgentCore.AwtBackend();
+        Thread startup = new Thread(() -> {
+            try {
+                desktop.awaitReady();
+            } catch (Exception e) {
+                AgentCore.fail("Initialization failed: " + e.getMessage());
+                return;
             }
-            
-        } catch (Exception e) {
-            sendError("Initialization failed: " + e.getMessage());
-            System.exit(1);
+            setupSystemTray();
+        }, "ccc-startup");
+        startup.setDaemon(true);
+        startup.start();
+        
+        int daemonPort = AgentCore.daemonPort(args);
+        if (daemonPort >= 0) {
+            AgentCore.serveDaemon(desktop, desktop, daemonPort);
+        } else {
+            AgentCore.serve(desktop, desktop);
+            // stdin closed: the coordinator is gone, and AWT's threads would keep an orphan alive
+            System.exit(0);
         }
     }
     
     private static void setupSystemTray() {
         if (!SystemTray.isSupported()) {
-            log("System tray not supported");
+            AgentCore.log("System tray not supported");
             return;
         }
         
@@ -56,7 +57,7 @@ public class ClipboardAgent {
             g.dispose();
             
             // Create tray icon
-            trayIcon = new TrayIcon(image, "CCC Agent");
+            TrayIcon trayIcon = new TrayIcon(image, "CCC Agent");
             trayIcon.setImageAutoSize(true);
             
             // Add popup menu
@@ -71,262 +72,101 @@ public class ClipboardAgent {
             
             trayIcon.setPopupMenu(popup);
             tray.add(trayIcon);
+            AgentCore.onStatus(message -> trayIcon.setToolTip("CCC Agent: " + message));
             
-            log("System tray initialized");
+            AgentCore.log("System tray initialized");
             
         } catch (Exception e) {
-            log("Failed to setup system tray: " + e.getMessage());
-        }
-    }
-    
-    private static void processCommand(String jsonCommand) {
-        try {
-            // Parse JSON manually (avoiding external dependencies)
-            Map<String, Object> cmd = parseSimpleJson(jsonCommand);
-            String command = (String) cmd.get("cmd");
-            
-            switch (command) {
-                case "SAVE_CLIPBOARD":
-                    saveClipboard();
-                    break;
-                    
-                case "RESTORE_CLIPBOARD":
-                    restoreClipboard();
-                    break;
-                    
-                case "SET_CLIPBOARD":
-                    setClipboard((String) cmd.get("data"));
-                    break;
-                    
-                case "GET_CLIPBOARD":
-                    getClipboard();
-                    break;
-                    
-                case "SAVE_MOUSE":
-                    saveMousePosition();
-                    break;
-                    
-                case "GET_MOUSE":
-                    getMousePosition();
-                    break;
-                    
-                case "RESTORE_MOUSE":
-                    restoreMousePosition();
-                    break;
-                    
-                case "CLICK_LOOP":
-                    startClickLoop(
-                        parseInt(cmd.get("x")),
-                        parseInt(cmd.get("y")),
-                        parseInt(cmd.get("interval")),
-                        parseInt(cmd.get("maxDuration"))
-                    );
-                    break;
-                    
-                case "STOP_CLICKING":
-                    stopClicking();
-                    break;
-                    
-                case "SET_STATUS":
-                    setStatus((String) cmd.get("message"));
-                    break;
-                    
-                case "PING":
-                    sendResponse("pong", null);
-                    break;
-                    
-                default:
-                    sendError("Unknown command: " + command);
-            }
-            
-        } catch (Exception e) {
-            sendError("Command processing failed: " + e.getMessage());
-        }
-    }
-    
-    private static void saveClipboard() {
-        try {
-            Transferable contents = clipboard.getContents(null);
-            if (contents != null && contents.isDataFlavorSupported(DataFlavor.stringFlavor)) {
-                savedClipboard = (String) contents.getTransferData(DataFlavor.stringFlavor);
-                sendResponse("clipboard_saved", savedClipboard.length() + " chars");
-            } else {
-                savedClipboard = "";
-                sendResponse("clipboard_saved", "empty");
-            }
-        } catch (Exception e) {
-            sendError("Failed to save clipboard: " + e.getMessage());
-        }
-    }
-    
-    private static void restoreClipboard() {
-        try {
-            StringSelection selection = new StringSelection(savedClipboard);
-            clipboard.setContents(selection, null);
-            sendResponse("clipboard_restored", savedClipboard.length() + " chars");
-        } catch (Exception e) {
-            sendError("Failed to restore clipboard: " + e.getMessage());
+            AgentCore.log("Failed to setup system tray: " + e.getMessage());
         }
     }
     
-    private static void setClipboard(String data) {
-        try {
-            StringSelection selection = new StringSelection(data);
-            clipboard.setContents(selection, null);
-            sendResponse("clipboard_set", data.length() + " chars");
-        } catch (Exception e) {
-            sendError("Failed to set clipboard: " + e.getMessage());
-        }
-    }
-    
-    private static void getClipboard() {
-        try {
-            Transferable contents = clipboard.getContents(null);
-            if (contents != null && contents.isDataFlavorSupported(DataFlavor.stringFlavor)) {
-                String data = (String) contents.getTransferData(DataFlavor.stringFlavor);
-                sendResponse("clipboard_content", data);
-            } else {
-                sendResponse("clipboard_content", "");
-            }
-        } catch (Exception e) {
-            sendError("Failed to get clipboard: " + e.getMessage());
+    /**
+     * --bench-transport [sizeKB ...]: compares the raw clipboard path with the chunked,
+     * compressed one on source-code-like text. Each run writes the message(s) to the
+     * clipboard, reads them back and (for chunks) reassembles; the median of several
+     * runs is reported with the number of characters that sat on the clipboard.
+     * Uses a private in-process clipboard when no display is available.
+     */
+    private static void runTransportBenchmark(String[] args) {
+        int[] sizesKb = {64, 1024, 4096, 10240};
+        if (args.length > 0) {
+            sizesKb = new int[args.length];
+            for (int i = 0; i < args.length; i++) sizesKb[i] = Integer.parseInt(args[i]);
         }
-    }
-    
-    private static void saveMousePosition() {
-        savedMousePosition = MouseInfo.getPointerInfo().getLocation();
-        sendResponse("mouse_saved", savedMousePosition.x + "," + savedMousePosition.y);
-    }
-    
-    private static void getMousePosition() {
-        Point currentPos = MouseInfo.getPointerInfo().getLocation();
-        sendResponse("mouse_position", currentPos.x + "," + currentPos.y);
-    }
-    
-    private static void restoreMousePosition() {
-        robot.mouseMove(savedMousePosition.x, savedMousePosition.y);
-        sendResponse("mouse_restored", savedMousePosition.x + "," + savedMousePosition.y);
-    }
-    
-    private static void startClickLoop(int x, int y, int interval, int maxDuration) {
-        stopClicking = false;
+        Clipboard target = GraphicsEnvironment.isHeadless()
+            ? new Clipboard("ccc-bench")
+            : Toolkit.getDefaultToolkit().getSystemClipboard();
+        AgentCore.ClipboardTransport chunked = new AgentCore.ClipboardTransport();
+        chunked.chunking = true;
         
-        executor.submit(() -> {
-            try {
-                long startTime = System.currentTimeMillis();
-                int clickCount = 0;
-                
-                while (!stopClicking && (System.currentTimeMillis() - startTime) < maxDuration) {
-                    // Move to position
-                    robot.mouseMove(x, y);
-                    robot.delay(50);
-                    
-                    // Click with hold time (like the proven test)
-                    robot.mousePress(InputEvent.BUTTON1_DOWN_MASK);
-                    robot.delay(80); // Hold for 80ms like the test
-                    robot.mouseRelease(InputEvent.BUTTON1_DOWN_MASK);
-                    clickCount++;
+        System.out.println("Clipboard: " + (GraphicsEnvironment.isHeadless()
+            ? "in-process (headless; raw transfers are free here, run with a display for real clipboard costs)"
+            : "system"));
+        System.out.printf("%10s %14s %14s %8s %7s %10s %10s%n",
+            "size", "raw chars", "chunked chars", "ratio", "chunks", "raw ms", "chunked ms");
+        try {
+            for (int sizeKb : sizesKb) {
+                String text = sampleText(sizeKb * 1024);
+                long[] rawTimes = new long[7];
+                long[] chunkTimes = new long[7];
+                long chunkedChars = 0;
+                int chunks = 0;
+                for (int run = 0; run < rawTimes.length; run++) {
+                    long start = System.nanoTime();
+                    target.setContents(new StringSelection(text), null);
+                    String back = (String) target.getData(DataFlavor.stringFlavor);
+                    rawTimes[run] = System.nanoTime() - start;
+                    if (back.length() != text.length()) throw new IllegalStateException("raw round-trip lost data");
                     
-                    // Wait for interval (use longer interval for more deliberate clicks)
-                    Thread.sleep(Math.max(interval, 500)); // At least 500ms between clicks
+                    start = System.nanoTime();
+                    java.util.List<String> messages = chunked.encode("CCC_CHUNK", "bench", text);
+                    AgentCore.ChunkAssembler assembler = new AgentCore.ChunkAssembler("bench");
+                    // encode() hands small text back untouched
+                    boolean raw = messages.get(0) == text;
+                    String result = null;
+                    chunkedChars = 0;
+                    for (String message : messages) {
+                        target.setContents(new StringSelection(message), null);
+                        String read = (String) target.getData(DataFlavor.stringFlavor);
+                        chunkedChars += read.length();
+                        result = raw ? read : assembler.accept(read);
+                    }
+                    chunkTimes[run] = System.nanoTime() - start;
+                    chunks = messages.size();
+                    if (result == null || !result.equals(text)) throw new IllegalStateException("chunked round-trip lost data");
                 }
-                
-                sendResponse("click_loop_complete", clickCount + " clicks");
-                
-            } catch (Exception e) {
-                sendError("Click loop failed: " + e.getMessage());
+                Arrays.sort(rawTimes);
+                Arrays.sort(chunkTimes);
+                System.out.printf(Locale.ROOT, "%8dKB %14d %14d %7.1fx %7d %10.1f %10.1f%n",
+                    sizeKb, text.length(), chunkedChars, (double) text.length() / chunkedChars, chunks,
+                    rawTimes[rawTimes.length / 2] / 1e6, chunkTimes[chunkTimes.length / 2] / 1e6);
             }
-        });
-        
-        sendResponse("click_loop_started", x + "," + y);
-    }
-    
-    private static void stopClicking() {
-        stopClicking = true;
-        sendResponse("clicking_stopped", null);
-    }
-    
-    private static void setStatus(String message) {
-        if (trayIcon != null) {
-            trayIcon.setToolTip("CCC Agent: " + message);
+        } catch (Exception e) {
+            System.err.println("Benchmark failed: " + e);
+            System.exit(1);
         }
-        sendResponse("status_set", message);
     }
     
-    // Helper methods
-    private static Map<String, Object> parseSimpleJson(String json) {
-        Map<String, Object> result = new HashMap<>();
-        
-        // Remove braces and split by comma
-        json = json.trim();
-        if (json.startsWith("{")) json = json.substring(1);
-        if (json.endsWith("}")) json = json.substring(0, json.length() - 1);
-        
-        // Parse key-value pairs
-        String[] pairs = json.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)");
-        for (String pair : pairs) {
-            String[] kv = pair.split(":", 2);
-            if (kv.length == 2) {
-                String key = kv[0].trim().replaceAll("\"", "");
-                String value = kv[1].trim();
-                
-                // Remove quotes from string values
-                if (value.startsWith("\"") && value.endsWith("\"")) {
-                    value = value.substring(1, value.length() - 1);
-                    // Unescape JSON string
-                    value = value.replace("\\\"", "\"")
-                                 .replace("\\\\", "\\")
-                                 .replace("\\n", "\n")
-                                 .replace("\\r", "\r")
-                                 .replace("\\t", "\t");
-                }
-                
-                result.put(key, value);
+    // Deterministic source-code-like text, roughly as compressible as a file-context prompt
+    static String sampleText(int chars) {
+        String[] words = {"public", "static", "final", "int", "String", "return", "if", "for", "new",
+            "private", "void", "clipboard", "request", "response", "payload", "buffer", "index", "count"};
+        StringBuilder sb = new StringBuilder(chars + 128);
+        long seed = 42;
+        while (sb.length() < chars) {
+            int indent = (int) (seed >>> 60);
+            for (int i = 0; i < indent; i++) sb.append("    ");
+            int tokens = 3 + (int) ((seed >>> 40) & 7);
+            for (int i = 0; i < tokens; i++) {
+                seed = seed * 6364136223846793005L + 1442695040888963407L;
+                sb.append(words[(int) ((seed >>> 33) % words.length)]);
+                if (((seed >>> 20) & 3) == 0) sb.append((seed >>> 50) & 1023);
+                sb.append(i + 1 < tokens ? ' ' : ';');
             }
+            sb.append('\n');
         }
-        
-        return result;
-    }
-    
-    private static int parseInt(Object value) {
-        if (value == null) return 0;
-        try {
-            return Integer.parseInt(value.toString());
-        } catch (NumberFormatException e) {
-            return 0;
-        }
-    }
-    
-    private static void sendResponse(String type, String data) {
-        // For clipboard_content, send raw data without escaping
-        if ("clipboard_content".equals(type) && data != null) {
-            String response = String.format("{\"type\":\"%s\",\"data\":%s,\"timestamp\":%d}",
-                type, escapeJson(data), System.currentTimeMillis());
-            System.out.println(response);
-        } else {
-            String response = String.format("{\"type\":\"%s\",\"data\":\"%s\",\"timestamp\":%d}",
-                type, data != null ? data : "", System.currentTimeMillis());
-            System.out.println(response);
-        }
-        System.out.flush();
-    }
-    
-    private static String escapeJson(String str) {
-        return "\"" + str.replace("\\", "\\\\")
-                         .replace("\"", "\\\"")
-                         .replace("\n", "\\n")
-                         .replace("\r", "\\r")
-                         .replace("\t", "\\t") + "\"";
-    }
-    
-    private static void sendError(String error) {
-        String response = String.format("{\"type\":\"error\",\"error\":\"%s\",\"timestamp\":%d}",
-            error, System.currentTimeMillis());
-        System.out.println(response);
-        System.out.flush();
-    }
-    
-    private static void log(String message) {
-        System.err.println("[Agent] " + message);
+        sb.setLength(chars);
+        return sb.toString();
     }
-}
\ No newline at end of file
+}
@@ -1,310 +1,494 @@
-import java.io.*;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.lang.reflect.Constructor;
 import java.util.*;
-import java.util.concurrent.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
- * Headless version of ClipboardAgent for testing without X11
- * This simulates clipboard and mouse operations for development/testing
+ * Headless version of ClipboardAgent for testing without X11: AgentCore with the clipboard
+ * and mouse simulated. Clicks go to a SimulatedBridge, so FLOW, click loops and clipboard
+ * subscriptions behave as they would against a real browser, with the bridge's configured
+ * latencies. With --loopback the engine runs on AgentCore.LoopbackBackend instead, and
+ * --daemon [port] serves loopback TCP sessions as ClipboardAgent does.
  */
 public class ClipboardAgentHeadless {
-    private static String savedClipboard = "";
-    private static String simulatedClipboard = "";
-    private static int[] savedMousePosition = {0, 0};
-    private static volatile boolean stopClicking = false;
-    private static ExecutorService executor;
-    private static boolean headlessMode = true;
+    private static SimulatedBridge bridge = new ScriptedBridge();
     
     public static void main(String[] args) {
+        AgentCore.openStdio("Headless Agent");
         try {
             // Check if we're in headless mode
             String display = System.getenv("DISPLAY");
             if (display == null || display.isEmpty()) {
                 log("Running in headless mode (no X11 display)");
-                log("Clipboard and mouse operations will be simulated");
-                headlessMode = true;
             } else {
                 log("Display found: " + display);
-                headlessMode = false;
             }
+            log("Clipboard and mouse operations will be simulated");
             
-            executor = Executors.newSingleThreadExecutor();
-            
-            // Process commands from stdin
-            Scanner scanner = new Scanner(System.in);
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine();
-                processCommand(line);
+            String bridgeClass = System.getProperty("ccc.bridge");
+            if (bridgeClass != null) {
+                Constructor<?> constructor = Class.forName(bridgeClass).getDeclaredConstructor();
+                constructor.setAccessible(true);
+                bridge = (SimulatedBridge) constructor.newInstance();
+                log("Using simulated bridge " + bridgeClass);
             }
-            
         } catch (Exception e) {
-            sendError("Initialization failed: " + e.getMessage());
-            System.exit(1);
+            AgentCore.fail("Initialization failed: " + e.getMessage());
+            return;
         }
-    }
-    
-    private static void processCommand(String jsonCommand) {
-        try {
-            Map<String, Object> cmd = parseSimpleJson(jsonCommand);
-            String command = (String) cmd.get("cmd");
-            
-            switch (command) {
-                case "SAVE_CLIPBOARD":
-                    saveClipboard();
-                    break;
-                    
-                case "RESTORE_CLIPBOARD":
-                    restoreClipboard();
-                    break;
-                    
-                case "SET_CLIPBOARD":
-                    setClipboard((String) cmd.get("data"));
-                    break;
-                    
-                case "GET_CLIPBOARD":
-                    getClipboard();
-                    break;
-                    
-                case "SAVE_MOUSE":
-                    saveMousePosition();
-                    break;
-                    
-                case "RESTORE_MOUSE":
-                    restoreMousePosition();
-                    break;
-                    
-                case "CLICK_LOOP":
-                    startClickLoop(
-                        parseInt(cmd.get("x")),
-                        parseInt(cmd.get("y")),
-                        parseInt(cmd.get("interval")),
-                        parseInt(cmd.get("maxDuration"))
-                    );
-                    break;
-                    
-                case "STOP_CLICKING":
-                    stopClicking();
-                    break;
-                    
-                case "SET_STATUS":
-                    setStatus((String) cmd.get("message"));
-                    break;
-                    
-                case "PING":
-                    sendResponse("pong", null);
-                    break;
-                    
-                default:
-                    sendError("Unknown command: " + command);
-            }
-            
-        } catch (Exception e) {
-            sendError("Command processing failed: " + e.getMessage());
+        
+        AgentCore.addCommand("CONFIGURE_BRIDGE", cmd -> {
+            bridge.configure(cmd);
+            AgentCore.sendResponse("bridge_configured", bridge.toString());
+        });
+        AgentCore.ClipboardBackend clipboard;
+        AgentCore.InputBackend input;
+        if (Arrays.asList(args).contains("--loopback")) {
+            log("Using the in-process loopback backend");
+            AgentCore.LoopbackBackend loopback = new AgentCore.LoopbackBackend();
+            clipboard = loopback;
+            input = loopback;
+        } else {
+            SimulatedBackend simulated = new SimulatedBackend();
+            clipboard = simulated;
+            input = simulated;
+        }
+        int daemonPort = AgentCore.daemonPort(args);
+        if (daemonPort >= 0) {
+            AgentCore.serveDaemon(clipboard, input, daemonPort);
+        } else {
+            AgentCore.serve(clipboard, input);
         }
     }
     
-    private static void saveClipboard() {
+    // Helper methods
+    private static int parseInt(Object value) {
+        if (value == null) return 0;
+        if (value instanceof Number) return ((Number) value).intValue();
         try {
-            if (headlessMode) {
-                // In headless mode, save the simulated clipboard
-                savedClipboard = simulatedClipboard;
-                sendResponse("clipboard_saved", savedClipboard.length() + " chars (simulated)");
-            } else {
-                // Would use real clipboard here
-                sendResponse("clipboard_saved", "0 chars");
-            }
-        } catch (Exception e) {
-            sendError("Failed to save clipboard: " + e.getMessage());
+            return Integer.parseInt(value.toString());
+        } catch (NumberFormatException e) {
+            return 0;
         }
     }
     
-    private static void restoreClipboard() {
-        try {
-            if (headlessMode) {
-                simulatedClipboard = savedClipboard;
-                sendResponse("clipboard_restored", savedClipboard.length() + " chars (simulated)");
-            } else {
-                sendResponse("clipboard_restored", "0 chars");
-            }
-        } catch (Exception e) {
-            sendError("Failed to restore clipboard: " + e.getMessage());
-        }
+    private static void log(String message) {
+        System.err.println("[Headless Agent] " + message);
     }
     
-    private static void setClipboard(String data) {
-        try {
-            if (headlessMode) {
-                simulatedClipboard = data;
-                log("Simulated clipboard set: " + data.substring(0, Math.min(100, data.length())) + "...");
-                sendResponse("clipboard_set", data.length() + " chars (simulated)");
-            } else {
-                sendResponse("clipboard_set", "0 chars");
+    /**
+     * The simulated clipboard and mouse. Writes are reported to the bridge and clicks go
+     * to it; whatever it writes back, on a click or on its own by the time the clipboard is
+     * read, replaces the clipboard the way a foreign write would, taking ownership from
+     * the agent. The bridge can also make clipboard access fail as if another application
+     * held the clipboard.
+     */
+    static final class SimulatedBackend implements AgentCore.ClipboardBackend, AgentCore.InputBackend {
+        private final java.util.List<Runnable> listeners = new CopyOnWriteArrayList<>();
+        private final Point position = new Point();
+        private String contents = "";
+        private Runnable owner;
+        
+        @Override
+        public String read() {
+            Runnable lost;
+            String text;
+            synchronized (this) {
+                if (bridge.clipboardBusy()) throw new IllegalStateException("cannot open system clipboard (simulated busy)");
+                String written = bridge.poll(System.nanoTime());
+                if (written == null) return contents;
+                contents = written;
+                text = written;
+                lost = owner;
+                owner = null;
             }
-        } catch (Exception e) {
-            sendError("Failed to set clipboard: " + e.getMessage());
+            // Outside the lock, as for a click: the agent's handler takes its own locks
+            if (lost != null) lost.run();
+            return text;
         }
-    }
-    
-    private static void getClipboard() {
-        try {
-            if (headlessMode) {
-                sendResponse("clipboard_content", simulatedClipboard);
-            } else {
-                sendResponse("clipboard_content", "");
+        
+        @Override
+        public synchronized void write(String text, Runnable lostOwnership) {
+            if (bridge.clipboardBusy()) throw new IllegalStateException("cannot open system clipboard (simulated busy)");
+            contents = text;
+            owner = lostOwnership;
+            bridge.clipboardSet(text, System.nanoTime());
+        }
+        
+        @Override
+        public void onChange(Runnable listener) {
+            listeners.add(listener);
+        }
+        
+        @Override
+        public synchronized Point position() {
+            return new Point(position);
+        }
+        
+        @Override
+        public synchronized void move(int x, int y) {
+            position.setLocation(x, y);
+        }
+        
+        @Override
+        public void press() {
+            Runnable lost;
+            synchronized (this) {
+                // A click beside the bridge's buttons does nothing
+                if (!bridge.hits(position.x, position.y)) return;
+                String written = bridge.click(System.nanoTime());
+                if (written == null) return;
+                contents = written;
+                lost = owner;
+                owner = null;
             }
-        } catch (Exception e) {
-            sendError("Failed to get clipboard: " + e.getMessage());
+            if (lost != null) lost.run();
+            for (Runnable listener : listeners) listener.run();
         }
-    }
-    
-    private static void saveMousePosition() {
-        if (headlessMode) {
-            // Simulate saving mouse position
-            savedMousePosition[0] = 100;
-            savedMousePosition[1] = 100;
-            sendResponse("mouse_saved", savedMousePosition[0] + "," + savedMousePosition[1] + " (simulated)");
-        } else {
-            sendResponse("mouse_saved", "0,0");
+        
+        @Override
+        public void release() {
+        }
+        
+        @Override
+        public int[] capture(int x, int y, int width, int height) {
+            return bridge.capture(x, y, width, height, System.nanoTime());
         }
     }
     
-    private static void restoreMousePosition() {
-        if (headlessMode) {
-            sendResponse("mouse_restored", savedMousePosition[0] + "," + savedMousePosition[1] + " (simulated)");
-        } else {
-            sendResponse("mouse_restored", "0,0");
+    /**
+     * The far side of the simulated clipboard: what a browser bridge does when the agent
+     * clicks. The agent reports each of its own clipboard writes and each click; the bridge
+     * answers a click with new clipboard text (an ACK or a BROWSER_RESPONSE) or null.
+     * The default is ScriptedBridge; -Dccc.bridge=<class> plugs in another (no-arg constructor).
+     */
+    interface SimulatedBridge {
+        /** Applies CONFIGURE_BRIDGE options. */
+        void configure(Map<String, Object> options);
+        
+        /** The agent wrote data to the clipboard at nowNanos (System.nanoTime()). */
+        void clipboardSet(String data, long nowNanos);
+        
+        /** The agent clicked at nowNanos; returns what the bridge writes to the clipboard, or null. */
+        String click(long nowNanos);
+        
+        /** What the bridge has written to the clipboard unprompted by nowNanos, e.g. progress, or null. */
+        default String poll(long nowNanos) {
+            return null;
+        }
+        
+        /** Whether this clipboard access should fail as if another application held the clipboard. */
+        boolean clipboardBusy();
+        
+        /** Whether a click at (x, y) lands on the bridge. */
+        default boolean hits(int x, int y) {
+            return true;
+        }
+        
+        /** The simulated screen in the given rectangle at nowNanos (see InputBackend.capture), or null. */
+        default int[] capture(int x, int y, int width, int height, long nowNanos) {
+            return null;
         }
     }
     
-    private static void startClickLoop(int x, int y, int interval, int maxDuration) {
-        stopClicking = false;
+    /**
+     * Deterministic load-test bridge. Each CCC_REQUEST placed on the clipboard is consumed
+     * (replaced by an ACK) on the first click after its consume latency, then answered on
+     * the first click after its response latency. Latencies are drawn from seeded
+     * distributions, so a given configuration always produces the same run. Its buttons
+     * show the mock bridge's colours: ready (#28a745) while a request waits to be read or
+     * a response to be written, busy (#ffc107) in between, idle (#17a2b8) with no request.
+     * Without a layout the bridge is a full-screen overlay: every pixel shows that colour
+     * and every click lands. With one, only its buttons do, on a dark background. With
+     * stream set, the response is streamed while it is being generated: the clipboard
+     * shows BROWSER_PROGRESS envelopes whose accumulated text grows with the time elapsed.
+     *
+     * CONFIGURE_BRIDGE options (all optional):
+     *   consume, respond   latency distributions, see Distribution.parse; default "fixed:0"
+     *   payloadSize        response content length in chars; 0 keeps the short mock text
+     *   errorRate          fraction of requests answered with status "error"
+     *   dropRate           fraction of requests consumed but never answered
+     *   busyRate           fraction of clipboard accesses that fail as busy
+     *   busyHold           how long the clipboard then stays locked, failing every access,
+     *                      as a latency distribution; default "fixed:0" (just that access)
+     *   seed               random seed, default 1; configuring always restarts the sequence
+     *   layout             {"read": [x, y, width, height], "write": [...]}: the buttons'
+     *                      screen rectangles; move them to simulate a moved window, {} clears
+     *   stream             progress updates per response, spread over its response latency;
+     *                      default 0 (none)
+     *   script             array of per-request overrides, applied in order and repeated:
+     *                      {"consume":..,"respond":..,"payloadSize":..,"outcome":"ok|error|drop"}
+     */
+    static class ScriptedBridge implements SimulatedBridge {
+        static final int READY = 0x28a745;
+        static final int BUSY = 0xffc107;
+        static final int IDLE = 0x17a2b8;
+        static final int BACKGROUND = 0x1a1a1a;
         
-        executor.submit(() -> {
-            try {
-                long startTime = System.currentTimeMillis();
-                int clickCount = 0;
-                
-                log("Starting simulated click loop at " + x + "," + y);
-                
-                while (!stopClicking && (System.currentTimeMillis() - startTime) < maxDuration) {
-                    // Simulate clicking
-                    clickCount++;
-                    
-                    if (clickCount % 10 == 0) {
-                        log("Simulated clicks: " + clickCount);
-                    }
-                    
-                    // Check clipboard for response every 5 clicks
-                    if (clickCount % 5 == 0 && headlessMode) {
-                        // Simulate finding a response after some clicks
-                        if (clickCount == 15 && simulatedClipboard.contains("CCC_REQUEST")) {
-                            // Extract request ID from the request
-                            String requestId = extractRequestId(simulatedClipboard);
-                            // Simulate browser response with matching ID
-                            String mockResponse = String.format(
-                                "{\"type\":\"BROWSER_RESPONSE\",\"id\":\"%s\",\"status\":\"success\",\"payload\":{\"content\":\"Mock response from simulated browser\"}}|||BROWSER_END|||",
-                                requestId
-                            );
-                            simulatedClipboard = mockResponse;
-                            log("Simulated browser response written to clipboard with ID: " + requestId);
-                        }
-                    }
-                    
-                    Thread.sleep(interval);
+        private long seed = 1;
+        private Random random = new Random(seed);
+        private Distribution consume = Distribution.parse("fixed:0");
+        private Distribution respond = Distribution.parse("fixed:0");
+        private int payloadSize = 0;
+        private double errorRate = 0;
+        private double dropRate = 0;
+        private double busyRate = 0;
+        private Distribution busyHold = Distribution.parse("fixed:0");
+        private long busyUntil = System.nanoTime();
+        private java.util.List<Map<String, Object>> script = Collections.emptyList();
+        private int step = 0;
+        private java.util.List<Rectangle> layout = Collections.emptyList();
+        private int stream = 0;
+        
+        // The request currently on the far side, if any
+        private String requestId = null;
+        private boolean consumed;
+        private long consumeAt;
+        private Distribution respondLatency;
+        private long respondAt;
+        private String outcome;
+        private int responseSize;
+        private long respondFrom;
+        private int progressShown;
+        
+        @Override
+        @SuppressWarnings("unchecked")
+        public synchronized void configure(Map<String, Object> options) {
+            if (options.containsKey("consume")) consume = Distribution.parse((String) options.get("consume"));
+            if (options.containsKey("respond")) respond = Distribution.parse((String) options.get("respond"));
+            if (options.containsKey("payloadSize")) payloadSize = Math.max(0, parseInt(options.get("payloadSize")));
+            if (options.containsKey("errorRate")) errorRate = parseRate(options.get("errorRate"));
+            if (options.containsKey("dropRate")) dropRate = parseRate(options.get("dropRate"));
+            if (options.containsKey("busyRate")) busyRate = parseRate(options.get("busyRate"));
+            if (options.containsKey("busyHold")) busyHold = Distribution.parse((String) options.get("busyHold"));
+            if (options.containsKey("stream")) stream = Math.max(0, parseInt(options.get("stream")));
+            if (options.containsKey("seed")) seed = parseSeed(options.get("seed"));
+            if (options.containsKey("layout")) {
+                java.util.List<Rectangle> buttons = new ArrayList<>();
+                for (Object rectangle : ((Map<String, Object>) options.get("layout")).values()) {
+                    java.util.List<Object> bounds = (java.util.List<Object>) rectangle;
+                    buttons.add(new Rectangle(parseInt(bounds.get(0)), parseInt(bounds.get(1)),
+                        parseInt(bounds.get(2)), parseInt(bounds.get(3))));
                 }
-                
-                sendResponse("click_loop_complete", clickCount + " clicks (simulated)");
-                
-            } catch (Exception e) {
-                sendError("Click loop failed: " + e.getMessage());
+                layout = buttons;
             }
-        });
+            if (options.containsKey("script")) {
+                java.util.List<Map<String, Object>> steps = new ArrayList<>();
+                for (Object entry : (java.util.List<Object>) options.get("script")) {
+                    steps.add((Map<String, Object>) entry);
+                }
+                script = steps;
+            }
+            random = new Random(seed);
+            step = 0;
+            requestId = null;
+            busyUntil = System.nanoTime();
+        }
         
-        sendResponse("click_loop_started", x + "," + y + " (simulated)");
-    }
-    
-    private static void stopClicking() {
-        stopClicking = true;
-        sendResponse("clicking_stopped", null);
-    }
-    
-    private static void setStatus(String message) {
-        log("Status: " + message);
-        sendResponse("status_set", message);
-    }
-    
-    // Helper methods
-    private static String extractRequestId(String clipboardContent) {
-        try {
-            // Extract the JSON part before |||CCC_END|||
-            int endIndex = clipboardContent.indexOf("|||CCC_END|||");
-            if (endIndex > 0) {
-                clipboardContent = clipboardContent.substring(0, endIndex);
+        @Override
+        public synchronized void clipboardSet(String data, long nowNanos) {
+            // Like the browser bridge, ignore requests that are stale or fail their checksum
+            EnvelopeScanner.Envelope request = EnvelopeScanner.scan(data, "CCC_REQUEST", null, System.currentTimeMillis());
+            if (request == null || !request.accepted()) {
+                if (request != null) log("Simulated bridge ignoring " + request.rejection + " request " + request.id);
+                // Anything else overwrites a request the bridge has not read yet
+                if (!consumed) requestId = null;
+                return;
             }
-            
-            // Simple extraction of id field from JSON
-            int idIndex = clipboardContent.indexOf("\"id\":");
-            if (idIndex > 0) {
-                int startQuote = clipboardContent.indexOf("\"", idIndex + 5);
-                int endQuote = clipboardContent.indexOf("\"", startQuote + 1);
-                if (startQuote > 0 && endQuote > startQuote) {
-                    return clipboardContent.substring(startQuote + 1, endQuote);
+            Map<String, Object> overrides = script.isEmpty()
+                ? Collections.<String, Object>emptyMap() : script.get(step++ % script.size());
+            requestId = request.id != null ? request.id : "unknown-id";
+            consumed = false;
+            consumeAt = nowNanos + pick(overrides, "consume", consume).sampleNanos(random);
+            respondLatency = pick(overrides, "respond", respond);
+            responseSize = overrides.containsKey("payloadSize") ? parseInt(overrides.get("payloadSize")) : payloadSize;
+            if (overrides.containsKey("outcome")) {
+                outcome = (String) overrides.get("outcome");
+            } else {
+                double roll = random.nextDouble();
+                outcome = roll < errorRate ? "error" : roll < errorRate + dropRate ? "drop" : "ok";
+            }
+        }
+        
+        @Override
+        public synchronized String click(long nowNanos) {
+            if (requestId == null) return null;
+            if (!consumed) {
+                if (nowNanos - consumeAt < 0) return null;
+                consumed = true;
+                respondFrom = nowNanos;
+                respondAt = nowNanos + respondLatency.sampleNanos(random);
+                progressShown = 0;
+                return "|||BROWSER_ACK:" + requestId + "|||";
+            }
+            if ("drop".equals(outcome) || nowNanos - respondAt < 0) return null;
+            String id = requestId;
+            requestId = null;
+            if ("error".equals(outcome)) {
+                return "{\"type\":\"BROWSER_RESPONSE\",\"id\":\"" + id + "\",\"timestamp\":" + System.currentTimeMillis()
+                    + ",\"status\":\"error\","
+                    + "\"payload\":{\"error\":\"Simulated bridge error\"}}|||BROWSER_END|||";
+            }
+            return "{\"type\":\"BROWSER_RESPONSE\",\"id\":\"" + id + "\",\"timestamp\":" + System.currentTimeMillis()
+                + ",\"status\":\"success\","
+                + "\"payload\":{\"content\":\"" + content(responseSize) + "\"}}|||BROWSER_END|||";
+        }
+        
+        @Override
+        public synchronized String poll(long nowNanos) {
+            if (stream == 0 || requestId == null || !consumed || !"ok".equals(outcome) || nowNanos - respondAt >= 0) return null;
+            // The update due by now, of stream spread evenly over the response latency
+            int due = (int) ((nowNanos - respondFrom) * stream / Math.max(1, respondAt - respondFrom));
+            if (due <= progressShown) return null;
+            progressShown = due;
+            String content = content(responseSize);
+            String accumulated = content.substring(0, (int) ((long) content.length() * due / stream));
+            return "{\"type\":\"BROWSER_PROGRESS\",\"id\":\"" + requestId + "\",\"timestamp\":" + System.currentTimeMillis()
+                + ",\"status\":\"streaming\",\"payload\":{\"accumulated\":\"" + accumulated + "\"}}|||BROWSER_PROGRESS|||";
+        }
+        
+        @Override
+        public synchronized boolean hits(int x, int y) {
+            if (layout.isEmpty()) return true;
+            for (Rectangle button : layout) {
+                if (button.contains(x, y)) return true;
+            }
+            return false;
+        }
+        
+        @Override
+        public synchronized int[] capture(int x, int y, int width, int height, long nowNanos) {
+            int[] pixels = new int[width * height];
+            int color = requestId == null ? IDLE
+                : consumed && ("drop".equals(outcome) || nowNanos - respondAt < 0) ? BUSY : READY;
+            if (layout.isEmpty()) {
+                Arrays.fill(pixels, color);
+                return pixels;
+            }
+            Arrays.fill(pixels, BACKGROUND);
+            for (Rectangle button : layout) {
+                Rectangle visible = button.intersection(new Rectangle(x, y, width, height));
+                if (visible.isEmpty()) continue;
+                for (int row = visible.y; row < visible.y + visible.height; row++) {
+                    int from = (row - y) * width + visible.x - x;
+                    Arrays.fill(pixels, from, from + visible.width, color);
                 }
             }
-        } catch (Exception e) {
-            log("Failed to extract request ID: " + e.getMessage());
+            return pixels;
+        }
+        
+        @Override
+        public synchronized boolean clipboardBusy() {
+            long now = System.nanoTime();
+            if (now - busyUntil < 0) return true;
+            if (busyRate > 0 && random.nextDouble() < busyRate) {
+                busyUntil = now + busyHold.sampleNanos(random);
+                return true;
+            }
+            return false;
+        }
+        
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.ROOT,
+                "consume=%s respond=%s payloadSize=%d errorRate=%s dropRate=%s busyRate=%s busyHold=%s seed=%d script=%d steps layout=%d buttons stream=%d",
+                consume, respond, payloadSize, errorRate, dropRate, busyRate, busyHold, seed, script.size(), layout.size(), stream);
+        }
+        
+        private static Distribution pick(Map<String, Object> overrides, String key, Distribution fallback) {
+            return overrides.containsKey(key) ? Distribution.parse((String) overrides.get(key)) : fallback;
+        }
+        
+        private static long parseSeed(Object value) {
+            if (value instanceof Number) return ((Number) value).longValue();
+            try {
+                return Long.parseLong(String.valueOf(value).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("bad seed: " + value);
+            }
+        }
+        
+        private static double parseRate(Object value) {
+            double rate = value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString());
+            return Math.max(0, Math.min(1, rate));
+        }
+        
+        private static String content(int size) {
+            if (size <= 0) return "Mock response from simulated browser";
+            StringBuilder text = new StringBuilder(size);
+            while (text.length() < size) {
+                text.append("Simulated response text. ");
+            }
+            text.setLength(size);
+            return text.toString();
         }
-        return "unknown-id";
     }
     
-    private static Map<String, Object> parseSimpleJson(String json) {
-        Map<String, Object> result = new HashMap<>();
-        
-        json = json.trim();
-        if (json.startsWith("{")) json = json.substring(1);
-        if (json.endsWith("}")) json = json.substring(0, json.length() - 1);
-        
-        String[] pairs = json.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)");
-        for (String pair : pairs) {
-            String[] kv = pair.split(":", 2);
-            if (kv.length == 2) {
-                String key = kv[0].trim().replaceAll("\"", "");
-                String value = kv[1].trim();
-                
-                if (value.startsWith("\"") && value.endsWith("\"")) {
-                    value = value.substring(1, value.length() - 1);
+    /** A latency distribution, sampled in nanoseconds from milliseconds parameters. */
+    static final class Distribution {
+        private final String spec;
+        private final String kind;
+        private final double a;
+        private final double b;
+        
+        private Distribution(String spec, String kind, double a, double b) {
+            this.spec = spec;
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+        }
+        
+        /**
+         * Parses "fixed:MS", "uniform:MIN:MAX", "exp:MEAN", "normal:MEAN:SD" or
+         * "lognormal:MEDIAN:SIGMA" (all in ms; sigma is the log-space deviation).
+         */
+        static Distribution parse(String spec) {
+            String[] parts = spec.split(":");
+            try {
+                double a = parts.length > 1 ? Double.parseDouble(parts[1]) : 0;
+                double b = parts.length > 2 ? Double.parseDouble(parts[2]) : 0;
+                switch (parts[0]) {
+                    case "fixed":
+                    case "exp":
+                        if (parts.length == 2) return new Distribution(spec, parts[0], a, 0);
+                        break;
+                    case "uniform":
+                    case "normal":
+                    case "lognormal":
+                        if (parts.length == 3) return new Distribution(spec, parts[0], a, b);
+                        break;
                 }
-                
-                result.put(key, value);
+            } catch (NumberFormatException e) {
+                // reported below
             }
+            throw new IllegalArgumentException("bad latency distribution: " + spec);
         }
         
-        return result;
-    }
-    
-    private static int parseInt(Object value) {
-        if (value == null) return 0;
-        try {
-            return Integer.parseInt(value.toString());
-        } catch (NumberFormatException e) {
-            return 0;
+        long sampleNanos(Random random) {
+            double ms;
+            switch (kind) {
+                case "uniform":
+                    ms = a + (b - a) * random.nextDouble();
+                    break;
+                case "exp":
+                    ms = -a * Math.log(1 - random.nextDouble());
+                    break;
+                case "normal":
+                    ms = a + b * random.nextGaussian();
+                    break;
+                case "lognormal":
+                    ms = a * Math.exp(b * random.nextGaussian());
+                    break;
+                default:
+                    ms = a;
+            }
+            return (long) (Math.max(0, ms) * 1e6);
+        }
+        
+        @Override
+        public String toString() {
+            return spec;
         }
     }
-    
-    private static void sendResponse(String type, String data) {
-        String response = String.format("{\"type\":\"%s\",\"data\":\"%s\",\"timestamp\":%d}",
-            type, data != null ? data : "", System.currentTimeMillis());
-        System.out.println(response);
-        System.out.flush();
-    }
-    
-    private static void sendError(String error) {
-        String response = String.format("{\"type\":\"error\",\"error\":\"%s\",\"timestamp\":%d}",
-            error, System.currentTimeMillis());
-        System.out.println(response);
-        System.out.flush();
-    }
-    
-    private static void log(String message) {
-        System.err.println("[Headless Agent] " + message);
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,347 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Single-pass scanner for the clipboard envelopes of SPEC.md's message format:
+ *
+ *   {"type":"BROWSER_RESPONSE","id":"..","timestamp":..,"status":"..","payload":{..},"checksum":"sha256-.."}|||BROWSER_END|||
+ *
+ * It walks the top-level members once, decoding only type, id, status, timestamp and
+ * checksum and stepping over everything else, the payload included, without parsing or
+ * copying it. Every producer writes type first and id second, so text that is not an
+ * envelope of the wanted type, or belongs to another request, is turned away within its
+ * first few dozen characters.
+ *
+ * An envelope that is found can still be rejected:
+ *   truncated  the end marker for its type is missing (S3.1)
+ *   expired    its timestamp is more than 60 seconds old (S3.5)
+ *   checksum   its checksum does not match (S3.1)
+ * The checksum is SHA-256 over the UTF-8 envelope JSON with the checksum member cut out,
+ * which is exactly what JSON.stringify produced before the sender appended the member.
+ * It is computed in chunks, never materializing the payload's bytes. Envelopes without a
+ * checksum are accepted but not verified, since not every bridge sends one.
+ *
+ * One payload member can be decoded on demand (payloadString), e.g. the accumulated text
+ * of a BROWSER_PROGRESS envelope.
+ *
+ * Shared by AgentCore, the headless agent's ScriptedBridge and StandaloneAgent.
+ */
+final class EnvelopeScanner {
+    /** S3.5: envelopes older than this are stale. */
+    static final long MAX_AGE_MILLIS = 60_000;
+    
+    private static final String CHECKSUM_PREFIX = "sha256-";
+    private static final int DIGEST_CHUNK = 4096;
+    private static final byte[] REPLACEMENT = {(byte) 0xEF, (byte) 0xBF, (byte) 0xBD};
+    
+    private EnvelopeScanner() {
+    }
+    
+    /** What scan found; rejection is null for an envelope that can be used. */
+    static final class Envelope {
+        final String type;
+        final String id;
+        final String status;
+        final long timestamp;
+        final boolean verified;
+        final String rejection;
+        private final String text;
+        private final int start;
+        private final int end;
+        private final int payloadStart;
+        private final int payloadEnd;
+        
+        private Envelope(String type, String id, String status, long timestamp, boolean verified,
+                         String rejection, String text, int start, int end, int payloadStart, int payloadEnd) {
+            this.type = type;
+            this.id = id;
+            this.status = status;
+            this.timestamp = timestamp;
+            this.verified = verified;
+            this.rejection = rejection;
+            this.text = text;
+            this.start = start;
+            this.end = end;
+            this.payloadStart = payloadStart;
+            this.payloadEnd = payloadEnd;
+        }
+        
+        boolean accepted() {
+            return rejection == null;
+        }
+        
+        /** The envelope's JSON object, without the end marker. */
+        String json() {
+            return text.substring(start, end);
+        }
+        
+        /**
+         * The decoded string member name of the payload object, or null if the payload is
+         * missing or lacks it. Only the payload's own members are walked, not their values.
+         */
+        String payloadString(String name) {
+            if (payloadStart < 0 || text.charAt(payloadStart) != '{') return null;
+            int i = skipSpace(text, payloadStart + 1);
+            // scan() has already found every value here to be complete
+            while (i < payloadEnd && text.charAt(i) == '"') {
+                int keyEnd = skipString(text, i);
+                int valueStart = skipSpace(text, skipSpace(text, keyEnd) + 1);
+                int valueEnd = skipValue(text, valueStart);
+                if (isKey(text, i, keyEnd, name)) return stringValue(text, valueStart, valueEnd);
+                i = skipSpace(text, valueEnd);
+                if (i >= payloadEnd || text.charAt(i) != ',') return null;
+                i = skipSpace(text, i + 1);
+            }
+            return null;
+        }
+    }
+    
+    /** The marker that follows an envelope of the given type, or null if it has none. */
+    static String endMarker(String type) {
+        switch (type) {
+            case "CCC_REQUEST": return "|||CCC_END|||";
+            case "BROWSER_RESPONSE": return "|||BROWSER_END|||";
+            case "BROWSER_PROGRESS": return "|||BROWSER_PROGRESS|||";
+            default: return null;
+        }
+    }
+    
+    /** Whether type names an envelope, so a subscription match on it can be checked with scan. */
+    static boolean isEnvelopeType(String type) {
+        return type != null && endMarker(type) != null;
+    }
+    
+    /**
+     * Scans text for an envelope of the given type. Returns null if text is not one, or if
+     * expectedId is given and the envelope carries a different id or none.
+     */
+    static Envelope scan(String text, String type, String expectedId, long nowMillis) {
+        if (text == null) return null;
+        int n = text.length();
+        int start = skipSpace(text, 0);
+        if (start >= n || text.charAt(start) != '{') return null;
+        
+        String foundType = null;
+        String id = null;
+        String status = null;
+        String checksum = null;
+        long timestamp = 0;
+        int payloadStart = -1;
+        int payloadEnd = -1;
+        int cutFrom = -1;
+        int cutTo = -1;
+        boolean cutToNext = false;
+        int comma = -1;
+        int i = skipSpace(text, start + 1);
+        int end;
+        while (true) {
+            if (i >= n || text.charAt(i) != '"') return null;
+            int keyEnd = skipString(text, i);
+            if (keyEnd < 0) return null;
+            int colon = skipSpace(text, keyEnd);
+            if (colon >= n || text.charAt(colon) != ':') return null;
+            int valueStart = skipSpace(text, colon + 1);
+            int valueEnd = skipValue(text, valueStart);
+            if (valueEnd < 0) {
+                // Cut off mid-value: only worth reporting if it is what the caller waits for
+                return type.equals(foundType) && (expectedId == null || expectedId.equals(id))
+                    ? new Envelope(foundType, id, status, timestamp, false, "truncated", text, start, n, -1, -1)
+                    : null;
+            }
+            
+            if (isKey(text, i, keyEnd, "type")) {
+                foundType = stringValue(text, valueStart, valueEnd);
+                if (!type.equals(foundType)) return null;
+            } else if (isKey(text, i, keyEnd, "id")) {
+                id = stringValue(text, valueStart, valueEnd);
+                if (expectedId != null && !expectedId.equals(id)) return null;
+            } else if (isKey(text, i, keyEnd, "status")) {
+                status = stringValue(text, valueStart, valueEnd);
+            } else if (isKey(text, i, keyEnd, "timestamp")) {
+                timestamp = longValue(text, valueStart, valueEnd);
+            } else if (isKey(text, i, keyEnd, "payload")) {
+                payloadStart = valueStart;
+                payloadEnd = valueEnd;
+            } else if (isKey(text, i, keyEnd, "checksum")) {
+                checksum = stringValue(text, valueStart, valueEnd);
+                // Cut the member with its leading comma, or its trailing one if it comes first
+                cutFrom = comma >= 0 ? comma : i;
+                cutTo = valueEnd;
+                cutToNext = comma < 0;
+            }
+            
+            i = skipSpace(text, valueEnd);
+            if (i >= n) return null;
+            char c = text.charAt(i);
+            if (c == '}') {
+                end = i + 1;
+                break;
+            }
+            if (c != ',') return null;
+            comma = i;
+            i = skipSpace(text, i + 1);
+            if (cutToNext) {
+                cutTo = i;
+                cutToNext = false;
+            }
+        }
+        if (!type.equals(foundType)) return null;
+        if (expectedId != null && id == null) return null;
+        
+        String rejection = null;
+        boolean verified = false;
+        String marker = endMarker(type);
+        if (marker != null && !text.startsWith(marker, skipSpace(text, end))) {
+            rejection = "truncated";
+        } else if (timestamp > 0 && nowMillis - timestamp > MAX_AGE_MILLIS) {
+            rejection = "expired";
+        } else if (checksum != null) {
+            verified = checksum.length() == CHECKSUM_PREFIX.length() + 64 && checksum.startsWith(CHECKSUM_PREFIX)
+                && checksum.regionMatches(true, CHECKSUM_PREFIX.length(), sha256(text, start, cutFrom, cutTo, end), 0, 64);
+            if (!verified) rejection = "checksum";
+        }
+        return new Envelope(foundType, id, status, timestamp, verified, rejection, text, start, end,
+            payloadStart, payloadEnd);
+    }
+    
+    private static boolean isKey(String text, int quote, int keyEnd, String name) {
+        return keyEnd - quote - 2 == name.length() && text.regionMatches(quote + 1, name, 0, name.length());
+    }
+    
+    private static int skipSpace(String text, int i) {
+        int n = text.length();
+        while (i < n) {
+            char c = text.charAt(i);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') break;
+            i++;
+        }
+        return i;
+    }
+    
+    // Index just past the string starting at the quote at i, or -1 if it never closes
+    private static int skipString(String text, int i) {
+        int n = text.length();
+        for (i++; i < n; i++) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+    
+    // Index just past the value starting at i, or -1 if the text ends inside it
+    private static int skipValue(String text, int i) {
+        int n = text.length();
+        if (i >= n) return -1;
+        char c = text.charAt(i);
+        if (c == '"') return skipString(text, i);
+        if (c != '{' && c != '[') {
+            // Number, true, false or null
+            while (i < n && ",}] \n\r\t".indexOf(text.charAt(i)) < 0) i++;
+            return i < n ? i : -1;
+        }
+        int depth = 0;
+        for (; i < n; i++) {
+            c = text.charAt(i);
+            if (c == '"') {
+                i = skipString(text, i);
+                if (i < 0) return -1;
+                i--;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if ((c == '}' || c == ']') && --depth == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+    
+    // The decoded string in [from, to), or null if the value is not a string
+    private static String stringValue(String text, int from, int to) {
+        if (text.charAt(from) != '"') return null;
+        int close = to - 1;
+        int escape = from + 1;
+        while (escape < close && text.charAt(escape) != '\\') escape++;
+        if (escape == close) return text.substring(from + 1, close);
+        StringBuilder value = new StringBuilder(close - from);
+        for (int i = from + 1; i < close; i++) {
+            char c = text.charAt(i);
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            c = text.charAt(++i);
+            switch (c) {
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'n': value.append('\n'); break;
+                case 'r': value.append('\r'); break;
+                case 't': value.append('\t'); break;
+                case 'u':
+                    value.append((char) Integer.parseInt(text.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                default: value.append(c);
+            }
+        }
+        return value.toString();
+    }
+    
+    private static long longValue(String text, int from, int to) {
+        try {
+            return Long.parseLong(text.substring(from, to));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    
+    // Hex SHA-256 of the UTF-8 of [start, end) without [cutFrom, cutTo), fed in chunks
+    private static String sha256(String text, int start, int cutFrom, int cutTo, int end) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        // Lone surrogates become U+FFFD, as they do in the browser's and Node's UTF-8
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE)
+            .replaceWith(REPLACEMENT);
+        char[] chars = new char[DIGEST_CHUNK];
+        ByteBuffer bytes = ByteBuffer.allocate(DIGEST_CHUNK * 3);
+        update(digest, encoder, text, start, cutFrom, chars, bytes);
+        update(digest, encoder, text, cutTo, end, chars, bytes);
+        
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+    
+    private static void update(MessageDigest digest, CharsetEncoder encoder, String text, int from, int to,
+                               char[] chars, ByteBuffer bytes) {
+        while (from < to) {
+            int chunkEnd = Math.min(from + chars.length, to);
+            // Keep surrogate pairs within one chunk
+            if (chunkEnd < to && Character.isHighSurrogate(text.charAt(chunkEnd - 1))) chunkEnd--;
+            text.getChars(from, chunkEnd, chars, 0);
+            encoder.reset();
+            bytes.clear();
+            encoder.encode(CharBuffer.wrap(chars, 0, chunkEnd - from), bytes, true);
+            encoder.flush(bytes);
+            bytes.flip();
+            digest.update(bytes);
+            from = chunkEnd;
+        }
+    }
+}
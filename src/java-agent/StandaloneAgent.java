@@ -1,31 +1,50 @@
 import java.awt.*;
-import java.awt.datatransfer.*;
-import java.awt.event.InputEvent;
+import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.*;
-import javax.swing.*;
 
+/**
+ * The demo without a coordinator: AgentCore on the desktop's clipboard and mouse, fed a
+ * short script from this process. Commands go to the engine over one pipe and its JSON
+ * responses come back over another, exactly as they would over stdin and stdout.
+ */
 public class StandaloneAgent {
-    private static Clipboard clipboard;
-    private static Robot robot;
-    private static String savedClipboard = "";
-    private static Point clickPosition = null;
-    private static volatile boolean calibrated = false;
+    private static final int RESPONSE_TIMEOUT = 60000;
+    
+    private static Writer commands;
+    private static AgentCore.CommandReader responses;
+    private static int nextCommandId = 0;
     private static TrayIcon trayIcon;
     
     public static void main(String[] args) {
         try {
-            // Initialize components
-            clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
-            robot = new Robot();
+            // Wire the engine to this process instead of stdin and stdout
+            Pipe commandPipe = Pipe.open();
+            Pipe responsePipe = Pipe.open();
+            AgentCore.open("Standalone Agent", Channels.newInputStream(commandPipe.source()), responsePipe.sink());
+            commands = new OutputStreamWriter(Channels.newOutputStream(commandPipe.sink()), StandardCharsets.UTF_8);
+            responses = new AgentCore.CommandReader(Channels.newInputStream(responsePipe.source()));
+            
+            AgentCore.AwtBackend desktop = new AgentCore.AwtBackend();
+            desktop.awaitReady();
             
             // Setup system tray
             setupSystemTray();
             
+            Thread engine = new Thread(() -> AgentCore.serve(desktop, desktop), "ccc-engine");
+            engine.setDaemon(true);
+            engine.start();
+            await(null, "ready");
+            
             // Start the demo flow
             runDemo();
             
+            // Ending the input stops the engine; the tray keeps showing the outcome
+            commands.close();
+            
         } catch (Exception e) {
             System.err.println("Error: " + e.getMessage());
             e.printStackTrace();
@@ -65,6 +84,9 @@ public class StandaloneAgent {
             trayIcon.setPopupMenu(popup);
             tray.add(trayIcon);
             
+            // The demo reports progress with SET_STATUS, like the coordinator does
+            AgentCore.onStatus(message -> statusItem.setLabel("Status: " + message));
+            
             System.out.println("System tray initialized");
             
         } catch (Exception e) {
@@ -82,116 +104,69 @@ public class StandaloneAgent {
         System.out.println();
         
         // Wait for calibration
-        waitForCalibration();
+        Point clickPosition = waitForCalibration();
         
-        // Send test AI request
-        sendAIRequest();
-        
-        // Wait for response
-        waitForResponse();
+        // Send test AI request and wait for the response
+        sendAIRequest(clickPosition);
         
         System.out.println("Demo completed!");
     }
     
-    private static void waitForCalibration() throws Exception {
+    private static Point waitForCalibration() throws Exception {
         System.out.println("[Demo] Waiting for calibration click...");
         
-        while (!calibrated) {
-            Thread.sleep(1000);
-            
-            try {
-                String clipboardText = getClipboardContent();
-                if (clipboardText != null && clipboardText.contains("CCC_CALIBRATION")) {
-                    processCalibration(clipboardText);
-                }
-            } catch (Exception e) {
-                // Ignore clipboard errors
-            }
-        }
-    }
-    
-    private static void processCalibration(String content) throws Exception {
+        // The bridge copies a CCC_CALIBRATION marker when its button is clicked
+        String id = send("SUBSCRIBE_CLIPBOARD", "match", "CCC_CALIBRATION", "pollInterval", 1000);
+        await(id, "clipboard_subscribed");
+        await(id, "clipboard_changed");
+        await(send("UNSUBSCRIBE_CLIPBOARD"), "clipboard_unsubscribed");
         System.out.println("[Demo] Calibration click detected!");
         
-        // Get current mouse position
-        Point mousePos = MouseInfo.getPointerInfo().getLocation();
-        clickPosition = mousePos;
-        calibrated = true;
-        
-        System.out.println("[Demo] Captured mouse position: " + mousePos.x + ", " + mousePos.y);
+        // The mouse is still over the button that was clicked
+        String[] position = ((String) await(send("GET_MOUSE"), "mouse_position").get("data")).split(",");
+        Point clickPosition = new Point(Integer.parseInt(position[0]), Integer.parseInt(position[1]));
+        System.out.println("[Demo] Captured mouse position: " + clickPosition.x + ", " + clickPosition.y);
         
-        // Update tray icon
-        if (trayIcon != null) {
-            PopupMenu popup = trayIcon.getPopupMenu();
-            if (popup.getItemCount() > 0) {
-                MenuItem statusItem = popup.getItem(0);
-                statusItem.setLabel("Status: Calibrated - Sending AI request");
-            }
-        }
+        send("SET_STATUS", "message", "Calibrated - Sending AI request");
         
         // Clear clipboard
-        setClipboard("");
-        Thread.sleep(1000);
+        await(send("SET_CLIPBOARD", "data", ""), "clipboard_set");
+        return clickPosition;
     }
     
-    private static void sendAIRequest() throws Exception {
+    private static void sendAIRequest(Point clickPosition) throws Exception {
         System.out.println("[Demo] Sending AI request...");
         
         // Create test request
+        String requestId = UUID.randomUUID().toString();
         String request = String.format(
             "{\"type\":\"CCC_REQUEST\",\"id\":\"%s\",\"timestamp\":%d,\"action\":\"ai-complete\",\"payload\":{\"prompt\":\"Write a haiku about clipboard bridges between programs\"}}|||CCC_END|||",
-            generateUUID(),
+            requestId,
             System.currentTimeMillis()
         );
         
-        // Set clipboard
-        setClipboard(request);
-        Thread.sleep(2000);
-        
-        // Click at calibrated position
+        // The bridge calibrated with one button, so it is both READ and WRITE; FLOW clicks it
+        // until the request is taken and a matching BROWSER_RESPONSE appears
         System.out.println("[Demo] Clicking at calibrated position...");
-        robot.mouseMove(clickPosition.x, clickPosition.y);
-        Thread.sleep(500);
-        
-        // Single click
-        robot.mousePress(InputEvent.BUTTON1_DOWN_MASK);
-        robot.delay(100);
-        robot.mouseRelease(InputEvent.BUTTON1_DOWN_MASK);
-        
-        System.out.println("[Demo] Request sent, waiting for response...");
-    }
-    
-    private static void waitForResponse() throws Exception {
-        int timeout = 60; // 60 seconds timeout
-        int elapsed = 0;
-        
-        while (elapsed < timeout) {
-            Thread.sleep(1000);
-            elapsed++;
-            
-            try {
-                String clipboardText = getClipboardContent();
-                if (clipboardText != null && clipboardText.contains("BROWSER_RESPONSE")) {
-                    processResponse(clipboardText);
-                    return;
-                }
-            } catch (Exception e) {
-                // Ignore clipboard errors
-            }
-            
-            if (elapsed % 5 == 0) {
-                System.out.println("[Demo] Still waiting... (" + elapsed + "s)");
-            }
+        Map<String, Object> result = await(send("FLOW",
+            "data", request,
+            "requestId", requestId,
+            "readX", clickPosition.x, "readY", clickPosition.y,
+            "writeX", clickPosition.x, "writeY", clickPosition.y,
+            "timeout", RESPONSE_TIMEOUT), "flow_complete", "flow_timeout");
+        
+        if ("flow_complete".equals(result.get("type"))) {
+            processResponse((String) result.get("data"));
+        } else {
+            System.out.println("[Demo] Response timeout (" + result.get("data") + ") after "
+                + RESPONSE_TIMEOUT / 1000 + " seconds");
         }
-        
-        System.out.println("[Demo] Response timeout after " + timeout + " seconds");
     }
     
-    private static void processResponse(String content) throws Exception {
+    private static void processResponse(String responseText) throws Exception {
         try {
-            String responseText = content.split("\\|\\|\\|BROWSER_END\\|\\|\\|")[0];
             // Simple JSON parsing for the response content
-            if (responseText.contains("\"content\":")) {
+            if (responseText != null && responseText.contains("\"content\":")) {
                 String contentStart = "\"content\":\"";
                 int start = responseText.indexOf(contentStart) + contentStart.length();
                 int end = responseText.indexOf("\",", start);
@@ -209,34 +184,57 @@ public class StandaloneAgent {
                 }
             }
             
-            // Update tray icon
-            if (trayIcon != null) {
-                PopupMenu popup = trayIcon.getPopupMenu();
-                if (popup.getItemCount() > 0) {
-                    MenuItem statusItem = popup.getItem(0);
-                    statusItem.setLabel("Status: Success! Response received");
-                }
-            }
-            
+            send("SET_STATUS", "message", "Success! Response received");
+        
         } catch (Exception e) {
             System.out.println("[Demo] Error parsing response: " + e.getMessage());
         }
     }
     
-    private static String getClipboardContent() throws Exception {
-        Transferable contents = clipboard.getContents(null);
-        if (contents != null && contents.isDataFlavorSupported(DataFlavor.stringFlavor)) {
-            return (String) contents.getTransferData(DataFlavor.stringFlavor);
+    // Sends a command with the given field name/value pairs and returns its id
+    private static String send(String cmd, Object... fields) throws IOException {
+        String id = "demo-" + (++nextCommandId);
+        StringBuilder line = new StringBuilder("{\"cmd\":").append(quote(cmd)).append(",\"id\":").append(quote(id));
+        for (int i = 0; i < fields.length; i += 2) {
+            line.append(',').append(quote((String) fields[i])).append(':');
+            line.append(fields[i + 1] instanceof Number ? fields[i + 1].toString() : quote(fields[i + 1].toString()));
         }
-        return null;
+        commands.write(line.append("}\n").toString());
+        commands.flush();
+        return id;
     }
     
-    private static void setClipboard(String text) throws Exception {
-        StringSelection selection = new StringSelection(text);
-        clipboard.setContents(selection, null);
+    // Reads responses until one of the given types arrives for id; errors for it end the demo
+    private static Map<String, Object> await(String id, String... types) throws IOException {
+        while (true) {
+            Map<String, Object> response = responses.next();
+            if (response == null) {
+                throw new IOException("Agent stopped");
+            }
+            if (id != null && !id.equals(response.get("id"))) {
+                continue;
+            }
+            if ("error".equals(response.get("type"))) {
+                throw new IOException(String.valueOf(response.get("error")));
+            }
+            if (Arrays.asList(types).contains(response.get("type"))) {
+                return response;
+            }
+        }
     }
     
-    private static String generateUUID() {
-        return UUID.randomUUID().toString();
+    private static String quote(String s) {
+        StringBuilder out = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.append('"').toString();
     }
-}
\ No newline at end of file
+}
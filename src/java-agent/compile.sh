@@ -3,7 +3,7 @@
 echo "Compiling Java agents..."
 
 # Clean up old files
-rm -f agent.jar agent-headless.jar ClipboardAgent*.class manifest.txt
+rm -f agent.jar agent-headless.jar ClipboardAgent*.class AgentCore*.class EnvelopeScanner*.class manifest.txt
 
 # Check if display is available
 if [ -z "$DISPLAY" ]; then
@@ -21,7 +21,7 @@ if [ -z "$DISPLAY" ]; then
     echo "Main-Class: ClipboardAgentHeadless" > manifest.txt
     
     # Create headless JAR
-    jar cfm agent-headless.jar manifest.txt ClipboardAgentHeadless.class
+    jar cfm agent-headless.jar manifest.txt ClipboardAgentHeadless.class 'ClipboardAgentHeadless$'*.class AgentCore*.class EnvelopeScanner*.class
     
     # Link as main agent.jar
     cp agent-headless.jar agent.jar
@@ -43,17 +43,20 @@ else
     
     # Create manifest for full JAR
     echo "Main-Class: ClipboardAgent" > manifest.txt
-    jar cfm agent.jar manifest.txt ClipboardAgent.class
+    jar cfm agent.jar manifest.txt ClipboardAgent.class 'ClipboardAgent$'*.class AgentCore*.class EnvelopeScanner*.class
     
     # Create manifest for headless JAR
     echo "Main-Class: ClipboardAgentHeadless" > manifest.txt
-    jar cfm agent-headless.jar manifest.txt ClipboardAgentHeadless.class
+    jar cfm agent-headless.jar manifest.txt ClipboardAgentHeadless.class 'ClipboardAgentHeadless$'*.class AgentCore*.class EnvelopeScanner*.class
     
     echo "Both Java agents compiled successfully"
 fi
 
 # Clean up
-rm -f ClipboardAgent*.class manifest.txt
+rm -f ClipboardAgent*.class AgentCore*.class EnvelopeScanner*.class manifest.txt
+
+# AppCDS archive (and with --jlink a trimmed runtime) for a faster agent start
+bash fast-start.sh "$@"
 
 echo "Done. Available JARs:"
 ls -la *.jar
\ No newline at end of file
@@ -0,0 +1,51 @@
+#!/bin/bash
+
+# Startup extras for agent.jar, built next to it; the coordinator uses whichever exist.
+#   agent.jsa  AppCDS archive of the classes a short agent session loads (JDK 13+), so a
+#              new JVM maps them instead of loading and verifying them one by one
+#   runtime/   with --jlink: a runtime trimmed to the modules the agent needs
+#              (java.base, java.desktop), preferred over the system java
+# Run from compile.sh after the jars are built, or by hand after changing the JDK.
+
+cd "$(dirname "$0")"
+
+if [ ! -f agent.jar ]; then
+    echo "agent.jar not found, compile the Java agent first"
+    exit 1
+fi
+
+# The archive must come from the JVM that will map it
+JAVA=java
+[ -x runtime/bin/java ] && JAVA=runtime/bin/java
+if [ "$1" = "--jlink" ]; then
+    if command -v jlink &> /dev/null; then
+        rm -rf runtime
+        jlink --add-modules java.base,java.desktop --strip-debug --no-man-pages --no-header-files \
+            --output runtime || exit 1
+        # jlink images come without the JDK's base archive, which agent.jsa builds on
+        runtime/bin/java -Xshare:dump > /dev/null 2>&1
+        JAVA=runtime/bin/java
+        echo "Runtime image: runtime/ ($(du -sh runtime | cut -f1))"
+    else
+        echo "jlink not found (JDK 9+ needed), skipping the runtime image"
+    fi
+fi
+
+rm -f agent.jsa
+if ! "$JAVA" -XX:+PrintFlagsFinal -version 2>/dev/null | grep -q ArchiveClassesAtExit; then
+    echo "This Java cannot write AppCDS archives (JDK 13+ needed), skipping agent.jsa"
+    exit 0
+fi
+
+# A scripted session loads what a real one does on its way to the first responses;
+# stdin stays open long enough for them, and closing it ends the agent. The archive
+# only maps for the jar path it was made with, which is the absolute one the
+# coordinator starts the agent with; moving the jar means running this again.
+(printf '%s\n' '{"cmd":"PING"}' '{"cmd":"GET_CLIPBOARD"}' '{"cmd":"SAVE_MOUSE"}' '{"cmd":"STATS"}'; sleep 2) \
+    | "$JAVA" -XX:ArchiveClassesAtExit=agent.jsa -jar "$PWD/agent.jar" > /dev/null 2>&1
+
+if [ -f agent.jsa ]; then
+    echo "AppCDS archive: agent.jsa ($(du -h agent.jsa | cut -f1))"
+else
+    echo "AppCDS training run failed, starting without an archive"
+fi
@@ -15,7 +15,8 @@ const CONFIG = {
 // State
 const state = {
   javaAgent: null,
-  calibrated: false
+  calibrated: false,
+  clipboardFingerprint: null // Last clipboard content seen, so polls skip unchanged reads
 };
 
 // Start Java agent
@@ -80,9 +81,14 @@ function sendJavaCommand(command) {
 function handleJavaResponse(response) {
   switch (response.type) {
     case 'clipboard_content':
+      state.clipboardFingerprint = response.fingerprint || null;
       checkClipboardContent(response.data);
       break;
       
+    case 'clipboard_unchanged':
+      // Already checked this content
+      break;
+      
     case 'mouse_position':
       if (state.waitingForMousePos) {
         // Parse position (format: "x,y")
@@ -179,7 +185,7 @@ async function pollForCalibration() {
     }
     
     // Poll clipboard - no timeout, wait forever
-    sendJavaCommand({ cmd: 'GET_CLIPBOARD' });
+    sendJavaCommand({ cmd: 'GET_CLIPBOARD', ifChanged: state.clipboardFingerprint });
     
   }, CONFIG.calibrationPollInterval);
 }
@@ -245,7 +251,7 @@ function pollForResponse() {
   // Poll clipboard
   const pollInterval = setInterval(() => {
     if (!responseFound) {
-      sendJavaCommand({ cmd: 'GET_CLIPBOARD' });
+      sendJavaCommand({ cmd: 'GET_CLIPBOARD', ifChanged: state.clipboardFingerprint });
     }
   }, 500);
   
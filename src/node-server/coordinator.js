@@ -1,30 +1,60 @@
 const { spawn } = require('child_process');
 const http = require('http');
+const net = require('net');
 const url = require('url');
 const fs = require('fs');
 const path = require('path');
 const crypto = require('crypto');
-const readline = require('readline');
+const os = require('os');
+const zlib = require('zlib');
 
 // Configuration
 const CONFIG = {
   javaAgentPath: path.join(__dirname, '..', 'java-agent', 'agent.jar'),
   serverPort: process.env.COORDINATOR_PORT || 5555,
-  clickInterval: 500, // Slower, more deliberate clicks
+  // Attach to an agent already running with --daemon on this port instead of spawning one
+  agentPort: process.env.CCC_AGENT_PORT ? parseInt(process.env.CCC_AGENT_PORT, 10) : 0,
+  clickInterval: 100, // SPEC target: 10 clicks/second
   maxClickDuration: 30000,
   // Two button positions for the UI
   readButtonPosition: { x: 500, y: 400 }, // Position of READ button
   writeButtonPosition: { x: 700, y: 400 }, // Position of WRITE button
-  requestTimeout: 30000
+  requestTimeout: 30000,
+  // Length-prefixed binary frames instead of JSON lines (negotiated with SET_FRAMING)
+  agentFraming: false,
+  // Chunked + gzip clipboard transport (SPEC S4.1/S4.2); the bridge must support CCC_CHUNK
+  transport: {
+    chunking: false,
+    chunkSize: 1024 * 1024,
+    compressThreshold: 64 * 1024
+  },
+  // Pixel-state gating (SPEC S2.2): the agent samples each button before clicking and skips
+  // the click while it shows busy or idle. Colours of the mock UI; null clicks blindly
+  buttonColors: process.env.CCC_BUTTON_GATING ? {
+    ready: '#28a745',
+    busy: '#ffc107',
+    idle: '#17a2b8'
+  } : null,
+  // Requests of at least this many characters go to the agent through a temp file
+  // instead of the pipe, and the response comes back the same way (SPEC S4.4); 0 disables
+  fileTransferThreshold: 0
 };
 
 // State management
 class CoordinatorState {
   constructor() {
     this.javaAgent = null;
+    this.agentInput = null;
+    this.agentFramed = false;
+    this.onAgentReady = null;
+    this.agentCalls = new Map();
+    this.nextCallId = 0;
     this.pendingRequests = new Map();
     this.isProcessing = false;
     this.calibrated = false;
+    // The agent holds the calibration (saved with button fingerprints) and follows the
+    // buttons when they move, so FLOW is sent without coordinates
+    this.agentCalibrated = false;
     this.buttonPositions = {
       read: CONFIG.readButtonPosition,
       write: CONFIG.writeButtonPosition
@@ -52,23 +82,16 @@ function startJavaAgent() {
       return;
     }
     
-    state.javaAgent = spawn('java', ['-jar', jarPath], {
+    const launch = agentLaunch(jarPath);
+    state.javaAgent = spawn(launch.java, launch.args, {
       stdio: ['pipe', 'pipe', 'pipe']
     });
+    const spawnedAt = Date.now();
+    state.agentInput = state.javaAgent.stdin;
     
-    const rl = readline.createInterface({
-      input: state.javaAgent.stdout,
-      crlfDelay: Infinity
-    });
-    
-    rl.on('line', (line) => {
-      try {
-        const response = JSON.parse(line);
-        handleJavaResponse(response);
-      } catch (e) {
-        console.log('[Java Agent]', line);
-      }
-    });
+    state.agentFramed = false;
+    const parser = new AgentStreamParser(handleJavaResponse);
+    state.javaAgent.stdout.on('data', (chunk) => parser.push(chunk));
     
     state.javaAgent.stderr.on('data', (data) => {
       console.error('[Java Agent Error]', data.toString());
@@ -77,6 +100,8 @@ function startJavaAgent() {
     state.javaAgent.on('exit', (code) => {
       console.log(`[Coordinator] Java agent exited with code ${code}`);
       state.javaAgent = null;
+      state.agentInput = null;
+      rejectAgentCalls('Java agent exited');
       
       if (code !== 0) {
         console.log('[Coordinator] Attempting to restart Java agent...');
@@ -84,13 +109,212 @@ function startJavaAgent() {
       }
     });
     
-    setTimeout(() => {
+    waitForAgentReady().then(async (ready) => {
+      console.log(ready
+        ? `[Coordinator] Java agent ready after ${Date.now() - spawnedAt}ms`
+        : '[Coordinator] Java agent did not announce itself, continuing');
+      if (CONFIG.agentFraming) {
+        await negotiateFraming(parser);
+      }
       sendJavaCommand({ cmd: 'PING' });
+      configureAgent();
       resolve();
+    });
+  });
+}
+
+// Transport and button palette settings, sent only when they differ from the agent's defaults;
+// then picks up a calibration the agent saved in an earlier session
+function configureAgent() {
+  const options = {};
+  if (CONFIG.transport.chunking) Object.assign(options, CONFIG.transport);
+  if (CONFIG.buttonColors) options.buttonColors = CONFIG.buttonColors;
+  if (Object.keys(options).length > 0) {
+    sendJavaCommand({ cmd: 'CONFIGURE', ...options });
+  }
+  callAgent({ cmd: 'GET_CALIBRATION' }, ['calibration']).then((saved) => {
+    if (!saved.calibrated || state.calibrated) return;
+    state.buttonPositions.read = { x: saved.read.x, y: saved.read.y };
+    state.buttonPositions.write = { x: saved.write.x, y: saved.write.y };
+    state.calibrated = true;
+    state.agentCalibrated = true;
+    console.log('[Coordinator] Using the agent\'s saved calibration:', state.buttonPositions);
+  }).catch((err) => console.log('[Coordinator] No saved calibration:', err.message));
+}
+
+// The JVM to run the agent with: the trimmed runtime and the AppCDS archive that
+// src/java-agent/fast-start.sh builds next to agent.jar, when they are there
+function agentLaunch(jarPath) {
+  const dir = path.dirname(jarPath);
+  const runtime = path.join(dir, 'runtime', 'bin', process.platform === 'win32' ? 'java.exe' : 'java');
+  const archive = path.join(dir, 'agent.jsa');
+  const args = [];
+  if (fs.existsSync(archive)) {
+    // A stale archive is only a warning; keep the JVM's log off the agent's stdout
+    args.push(`-XX:SharedArchiveFile=${archive}`, '-Xlog:all=warning:stderr');
+  }
+  args.push('-jar', jarPath);
+  return { java: fs.existsSync(runtime) ? runtime : 'java', args };
+}
+
+// The agent sends 'ready' once it reads commands. Agents from before that event
+// never send it, so after a while they are assumed ready, as they used to be.
+function waitForAgentReady() {
+  return new Promise(resolve => {
+    const timer = setTimeout(() => {
+      state.onAgentReady = null;
+      resolve(false);
     }, 1000);
+    state.onAgentReady = () => {
+      clearTimeout(timer);
+      state.onAgentReady = null;
+      resolve(true);
+    };
+  });
+}
+
+// Attach to an agent daemon (java -jar agent.jar --daemon PORT). The daemon keeps
+// its JVM, Robot and tray across coordinator restarts, so a dropped connection is
+// simply re-opened. Daemon sessions speak JSON lines only.
+function attachJavaAgent() {
+  return new Promise(resolve => {
+    const socket = net.createConnection({ host: '127.0.0.1', port: CONFIG.agentPort });
+    const parser = new AgentStreamParser(handleJavaResponse);
+    
+    socket.on('connect', () => {
+      console.log(`[Coordinator] Attached to Java agent daemon on port ${CONFIG.agentPort}`);
+      socket.setNoDelay(true);
+      state.javaAgent = socket;
+      state.agentInput = socket;
+      state.agentFramed = false;
+      sendJavaCommand({ cmd: 'PING' });
+      configureAgent();
+      resolve();
+    });
+    socket.on('data', (chunk) => parser.push(chunk));
+    socket.on('error', (err) => {
+      // Refused just means the daemon is not up (yet); keep retrying quietly
+      if (err.code !== 'ECONNREFUSED') console.error('[Coordinator] Java agent daemon:', err.message);
+    });
+    socket.on('close', () => {
+      if (state.javaAgent === socket) {
+        console.log('[Coordinator] Java agent daemon connection closed');
+        state.javaAgent = null;
+        state.agentInput = null;
+        rejectAgentCalls('Java agent disconnected');
+      }
+      // A daemon that is not up yet must not hold up startup
+      resolve();
+      setTimeout(() => attachJavaAgent(), 250);
+    });
   });
 }
 
+function rejectAgentCalls(reason) {
+  for (const call of state.agentCalls.values()) {
+    call.reject(new Error(reason));
+  }
+  state.agentCalls.clear();
+}
+
+// Switch the agent protocol to frames. Nothing else is sent until the agent
+// answers, so no command can straddle the switch; an agent without framing
+// support answers with an error and both sides stay on JSON lines.
+function negotiateFraming(parser) {
+  return new Promise(resolve => {
+    const timer = setTimeout(() => {
+      parser.onNegotiated = null;
+      console.log('[Coordinator] Agent did not answer SET_FRAMING, staying on JSON');
+      resolve(false);
+    }, 2000);
+    parser.onNegotiated = (framed) => {
+      clearTimeout(timer);
+      parser.onNegotiated = null;
+      state.agentFramed = framed;
+      console.log('[Coordinator] Agent protocol:', framed ? 'framed' : 'json');
+      resolve(framed);
+    };
+    sendJavaCommand({ cmd: 'SET_FRAMING', mode: 'framed' });
+  });
+}
+
+// Parses agent stdout: JSON lines until framing is negotiated, then frames of
+// [uint32 header length][uint32 payload length][JSON header][UTF-8 payload].
+// Chunks are only joined once a whole line or frame has arrived, so a large
+// payload is copied once rather than on every 64KB read.
+class AgentStreamParser {
+  constructor(onMessage) {
+    this.onMessage = onMessage;
+    this.onNegotiated = null;
+    this.framed = false;
+    this.chunks = [];
+    this.length = 0;
+    this.needed = 0;
+  }
+  
+  push(chunk) {
+    this.chunks.push(chunk);
+    this.length += chunk.length;
+    if (this.framed ? this.length < this.needed : chunk.indexOf(10) < 0) return;
+    
+    const buffer = this.chunks.length === 1 ? this.chunks[0] : Buffer.concat(this.chunks, this.length);
+    let offset = 0;
+    this.needed = 0;
+    while (offset < buffer.length) {
+      if (!this.framed) {
+        const newline = buffer.indexOf(10, offset);
+        if (newline < 0) break;
+        this.handleLine(buffer.toString('utf8', offset, newline));
+        offset = newline + 1;
+      } else {
+        if (buffer.length - offset < 8) {
+          this.needed = 8;
+          break;
+        }
+        const headerLength = buffer.readUInt32BE(offset);
+        const payloadLength = buffer.readUInt32BE(offset + 4);
+        const frameLength = 8 + headerLength + payloadLength;
+        if (buffer.length - offset < frameLength) {
+          this.needed = frameLength;
+          break;
+        }
+        const headerStart = offset + 8;
+        const payloadStart = headerStart + headerLength;
+        const message = JSON.parse(buffer.toString('utf8', headerStart, payloadStart));
+        if (payloadLength > 0) {
+          message.data = buffer.toString('utf8', payloadStart, payloadStart + payloadLength);
+        }
+        offset += frameLength;
+        this.dispatch(message);
+      }
+    }
+    const rest = buffer.subarray(offset);
+    this.chunks = rest.length ? [rest] : [];
+    this.length = rest.length;
+  }
+  
+  handleLine(line) {
+    let message;
+    try {
+      message = JSON.parse(line);
+    } catch (e) {
+      console.log('[Java Agent]', line);
+      return;
+    }
+    if (message.type === 'framing_set' && message.data === 'framed') {
+      this.framed = true;
+    }
+    this.dispatch(message);
+  }
+  
+  dispatch(message) {
+    if (this.onNegotiated && (message.type === 'framing_set' || message.type === 'error')) {
+      this.onNegotiated(message.type === 'framing_set' && message.data === 'framed');
+    }
+    this.onMessage(message);
+  }
+}
+
 // Send command to Java agent
 function sendJavaCommand(command) {
   if (!state.javaAgent) {
@@ -98,28 +322,104 @@ function sendJavaCommand(command) {
     return false;
   }
   
-  const commandStr = JSON.stringify(command) + '\n';
-  state.javaAgent.stdin.write(commandStr);
+  if (state.agentFramed) {
+    // Large string data travels as the raw payload, never JSON-escaped
+    const { data, ...fields } = command;
+    const hasPayload = typeof data === 'string' && data.length > 0;
+    const header = Buffer.from(JSON.stringify(hasPayload ? fields : command));
+    const payload = hasPayload ? Buffer.from(data, 'utf8') : null;
+    const prefix = Buffer.alloc(8);
+    prefix.writeUInt32BE(header.length, 0);
+    prefix.writeUInt32BE(payload ? payload.length : 0, 4);
+    state.agentInput.write(prefix);
+    state.agentInput.write(header);
+    if (payload) state.agentInput.write(payload);
+  } else {
+    const commandStr = JSON.stringify(command) + '\n';
+    state.agentInput.write(commandStr);
+  }
   console.log('[Coordinator] Sent to Java:', command.cmd);
   return true;
 }
 
+// Send a command tagged with a fresh id and resolve with the first response
+// carrying that id whose type is in doneTypes. Interim replies such as
+// flow_started are skipped; an error reply rejects, and so does busy (the
+// agent's queue is full), with err.retryAfterMs set. An error for a clipboard
+// that stayed locked carries retryAfterMs too when the command is safe to
+// send again. Commands are pipelined:
+// several calls may be in flight and the agent may answer them out of order.
+function callAgent(command, doneTypes) {
+  return new Promise((resolve, reject) => {
+    const id = 'c' + (++state.nextCallId);
+    state.agentCalls.set(id, { doneTypes, resolve, reject });
+    if (!sendJavaCommand({ ...command, id })) {
+      state.agentCalls.delete(id);
+      reject(new Error('Java agent not running'));
+    }
+  });
+}
+
 // Handle response from Java agent
 function handleJavaResponse(response) {
   console.log('[Coordinator] Java response:', response.type);
   
+  const call = response.id !== undefined && state.agentCalls.get(response.id);
+  if (call) {
+    if (response.type === 'error') {
+      state.agentCalls.delete(response.id);
+      const err = new Error(response.error);
+      if (response.retryAfterMs !== undefined) err.retryAfterMs = response.retryAfterMs;
+      call.reject(err);
+      return;
+    }
+    if (response.type === 'busy') {
+      state.agentCalls.delete(response.id);
+      const err = new Error(`Agent busy: ${response.queued} ${response.data} commands ahead`);
+      err.retryAfterMs = response.retryAfterMs;
+      call.reject(err);
+      return;
+    }
+    if (call.doneTypes.includes(response.type)) {
+      state.agentCalls.delete(response.id);
+      call.resolve(response);
+      return;
+    }
+  }
+  
   switch (response.type) {
-    case 'pong':
-      console.log('[Coordinator] Java agent is responsive');
+    case 'ready':
+      console.log(`[Coordinator] Java agent started in ${response.startupMs}ms`);
+      if (state.onAgentReady) state.onAgentReady();
       break;
       
-    case 'clipboard_content':
-      checkClipboardForResponse(response.data);
+    case 'pong':
+      console.log('[Coordinator] Java agent is responsive');
       break;
       
     case 'click_loop_complete':
       handleClickLoopComplete(response.data);
       break;
+      
+    case 'clipboard_delta':
+      applyDelta(response);
+      break;
+      
+    case 'button_state':
+      console.log(`[Coordinator] ${response.data} button is ${response.state} (${response.color})`);
+      break;
+      
+    case 'button_moved':
+      // The agent has found the button again and saved it; keep /api/status current
+      state.buttonPositions[response.data] = { x: response.x, y: response.y };
+      console.log(`[Coordinator] ${response.data} button moved to ${response.x},${response.y} (${response.searchMs}ms)`);
+      break;
+      
+    case 'button_lost':
+      // FLOWs fail with button_lost until the buttons are calibrated again; say so in /api/status
+      state.calibrated = false;
+      console.error(`[Coordinator] ${response.data} button is no longer near ${response.x},${response.y}; recalibrate`);
+      break;
   }
 }
 
@@ -135,8 +435,10 @@ function calculateChecksum(data) {
   return 'sha256-' + hash.digest('hex');
 }
 
-// Send request through clipboard bridge with button approach
-async function sendClipboardRequest(action, payload) {
+// Send request through clipboard bridge with button approach. With onProgress,
+// the response is streamed: onProgress(chunk, accumulated, resync) is called as
+// the bridge's progress arrives, before the promise resolves with the whole response
+async function sendClipboardRequest(action, payload, onProgress) {
   return new Promise((resolve, reject) => {
     const requestId = generateUUID();
     const request = {
@@ -154,7 +456,9 @@ async function sendClipboardRequest(action, payload) {
       resolve: resolve,
       reject: reject,
       startTime: Date.now(),
-      retries: 0
+      retries: 0,
+      onProgress: onProgress,
+      partial: ''
     });
     
     setTimeout(() => {
@@ -172,68 +476,135 @@ async function sendClipboardRequest(action, payload) {
 
 // Execute the button-based clipboard flow
 async function executeButtonFlow(request) {
+  let files = [];
   try {
     state.isProcessing = true;
     
     console.log('[Coordinator] Starting button-based flow for request:', request.id);
     
-    // Step 1: Save current clipboard
-    sendJavaCommand({ cmd: 'SAVE_CLIPBOARD' });
-    await sleep(100);
-    
-    // Step 2: Set request in clipboard
+    // The agent runs save -> set -> READ -> WRITE -> restore itself and
+    // replies with flow_complete (or flow_timeout) carrying stage timings
     const requestText = JSON.stringify(request) + '|||CCC_END|||';
-    sendJavaCommand({ cmd: 'SET_CLIPBOARD', data: requestText });
-    await sleep(200);
-    
-    // Step 3: Click READ button (multiple times to ensure it reads)
-    console.log('[Coordinator] Clicking READ button...');
-    for (let i = 0; i < 3; i++) {
-      sendJavaCommand({
-        cmd: 'CLICK_LOOP',
-        x: state.buttonPositions.read.x,
-        y: state.buttonPositions.read.y,
-        interval: 500,
-        maxDuration: 2000 // Click for 2 seconds
-      });
-      await sleep(2500);
-      sendJavaCommand({ cmd: 'STOP_CLICKING' });
-      await sleep(500);
-    }
+    const viaFile = CONFIG.fileTransferThreshold > 0 && requestText.length >= CONFIG.fileTransferThreshold;
+    if (viaFile) files = [payloadFilePath(request.id, 'req'), payloadFilePath(request.id, 'res')];
+    const payload = viaFile
+      ? { dataFile: writePayloadFile(files[0], requestText), responseFile: files[1] }
+      : { data: requestText };
+    const pending = state.pendingRequests.get(request.id);
+    const positions = state.agentCalibrated ? {} : {
+      readX: state.buttonPositions.read.x,
+      readY: state.buttonPositions.read.y,
+      writeX: state.buttonPositions.write.x,
+      writeY: state.buttonPositions.write.y
+    };
+    const result = await callAgent({
+      cmd: 'FLOW',
+      ...payload,
+      requestId: request.id,
+      ...positions,
+      stream: Boolean(pending && pending.onProgress),
+      interval: CONFIG.clickInterval,
+      timeout: CONFIG.requestTimeout
+    }, ['flow_complete', 'flow_timeout']);
     
-    // Step 4: Click WRITE button to get response
-    console.log('[Coordinator] Clicking WRITE button...');
-    for (let i = 0; i < 3; i++) {
-      sendJavaCommand({
-        cmd: 'CLICK_LOOP',
-        x: state.buttonPositions.write.x,
-        y: state.buttonPositions.write.y,
-        interval: 500,
-        maxDuration: 2000
-      });
-      await sleep(2500);
-      sendJavaCommand({ cmd: 'STOP_CLICKING' });
-      
-      // Check clipboard for response
-      sendJavaCommand({ cmd: 'GET_CLIPBOARD' });
-      await sleep(500);
+    state.isProcessing = false;
+    if (result.type === 'flow_complete') {
+      // The agent has already matched the id, checked expiry and verified any checksum
+      console.log('[Coordinator] Flow complete in', result.totalMs, 'ms',
+        `(read ${result.readMs}ms, write ${result.writeMs}ms, checksum ${result.verified ? 'verified' : 'absent'})`);
+      checkClipboardForResponse(result.responseFile
+        ? readPayloadFile(files[1], result.responseFile)
+        : result.data);
+    } else {
+      console.log('[Coordinator] Flow timed out:', result.data);
+      // Whatever the stage, the agent has stopped clicking and restored the clipboard;
+      // the caller hears now instead of at its timeout
+      failRequest(request.id, new Error(`Flow timed out: ${result.data}`));
     }
     
-    // Step 5: Final cleanup after timeout
-    setTimeout(() => {
-      sendJavaCommand({ cmd: 'RESTORE_CLIPBOARD' });
-      state.isProcessing = false;
-    }, 15000);
-    
   } catch (error) {
-    console.error('[Coordinator] Button flow error:', error);
     state.isProcessing = false;
+    if (error.retryAfterMs !== undefined) {
+      // Refused, or the clipboard stayed locked, before READ was clicked: nothing to
+      // clean up, just try again once the agent catches up
+      console.log(`[Coordinator] ${error.message}; retrying in ${error.retryAfterMs}ms`);
+      setTimeout(() => {
+        if (state.pendingRequests.has(request.id)) executeButtonFlow(request);
+      }, error.retryAfterMs);
+      return;
+    }
+    console.error('[Coordinator] Button flow error:', error);
     
-    sendJavaCommand({ cmd: 'STOP_CLICKING' });
-    sendJavaCommand({ cmd: 'RESTORE_CLIPBOARD' });
+    // The agent has already stopped this flow's clicking and restored the clipboard;
+    // the flow is over, so fail the request now rather than at its timeout
+    failRequest(request.id, error);
+  } finally {
+    files.forEach(removePayloadFile);
+  }
+}
+
+// Rejects a pending request whose flow has ended without a response
+function failRequest(requestId, error) {
+  const pending = state.pendingRequests.get(requestId);
+  if (pending) {
+    state.pendingRequests.delete(requestId);
+    pending.reject(error);
+    state.stats.errors++;
+  }
+}
+
+// Payload files for the agent's file side channel: the agent maps the region
+// { path, offset, length, checksum } instead of receiving the text over the pipe
+function payloadFilePath(requestId, kind) {
+  return path.join(os.tmpdir(), `ccc-${requestId}-${kind}.bin`);
+}
+
+function writePayloadFile(filePath, text) {
+  const bytes = Buffer.from(text, 'utf8');
+  fs.writeFileSync(filePath, bytes);
+  return { path: filePath, offset: 0, length: bytes.length, checksum: crc32Checksum(bytes) };
+}
+
+function readPayloadFile(filePath, region) {
+  const fd = fs.openSync(filePath, 'r');
+  try {
+    const bytes = Buffer.alloc(region.length);
+    fs.readSync(fd, bytes, 0, region.length, region.offset);
+    if (crc32Checksum(bytes) !== region.checksum) {
+      throw new Error(`Checksum mismatch in ${filePath}`);
+    }
+    return bytes.toString('utf8');
+  } finally {
+    fs.closeSync(fd);
   }
 }
 
+function removePayloadFile(filePath) {
+  fs.unlink(filePath, () => {});
+}
+
+// Same "crc32-xxxxxxxx" form as the agent's transport checksums
+let crcTable = null;
+function crc32Checksum(bytes) {
+  let crc;
+  if (typeof zlib.crc32 === 'function') {
+    crc = zlib.crc32(bytes);
+  } else {
+    if (!crcTable) {
+      crcTable = new Int32Array(256);
+      for (let n = 0; n < 256; n++) {
+        let c = n;
+        for (let k = 0; k < 8; k++) c = c & 1 ? 0xEDB88320 ^ (c >>> 1) : c >>> 1;
+        crcTable[n] = c;
+      }
+    }
+    crc = -1;
+    for (let i = 0; i < bytes.length; i++) crc = crcTable[(crc ^ bytes[i]) & 0xFF] ^ (crc >>> 8);
+    crc = (crc ^ -1) >>> 0;
+  }
+  return 'crc32-' + crc.toString(16).padStart(8, '0');
+}
+
 // Check clipboard content for response
 function checkClipboardForResponse(clipboardContent) {
   if (!clipboardContent) return;
@@ -247,8 +618,7 @@ function checkClipboardForResponse(clipboardContent) {
       
       const pending = state.pendingRequests.get(response.id);
       if (pending) {
-        sendJavaCommand({ cmd: 'RESTORE_CLIPBOARD' });
-        
+        // FLOW has already restored the user's clipboard
         pending.resolve(response);
         state.pendingRequests.delete(response.id);
         state.stats.responsesReceived++;
@@ -261,6 +631,22 @@ function checkClipboardForResponse(clipboardContent) {
   }
 }
 
+// Streamed progress: the agent sends only the text appended since the last delta,
+// or the whole text again with resync, so a long answer crosses the pipe once
+function applyDelta(delta) {
+  const pending = state.pendingRequests.get(delta.responseId);
+  if (!pending || !pending.onProgress) return;
+  if (delta.resync) {
+    pending.partial = delta.data;
+  } else if (delta.offset === pending.partial.length) {
+    pending.partial += delta.data;
+  } else {
+    console.error(`[Coordinator] Delta ${delta.seq} for ${delta.responseId} does not follow the text so far`);
+    return;
+  }
+  pending.onProgress(delta.data, pending.partial, delta.resync);
+}
+
 // Handle click loop completion
 function handleClickLoopComplete(data) {
   console.log('[Coordinator] Click loop completed:', data);
@@ -272,14 +658,14 @@ function calibrateButtons(readX, readY, writeX, writeY) {
   state.buttonPositions.write = { x: writeX, y: writeY };
   state.calibrated = true;
   console.log('[Coordinator] Button positions calibrated:', state.buttonPositions);
+  // The agent fingerprints the buttons and saves them, so the calibration outlives both processes
+  state.agentCalibrated = false;
+  callAgent({ cmd: 'CALIBRATE', readX, readY, writeX, writeY }, ['calibrated']).then(() => {
+    state.agentCalibrated = true;
+  }).catch((err) => console.error('[Coordinator] Agent calibration failed:', err.message));
   return true;
 }
 
-// Utility: sleep
-function sleep(ms) {
-  return new Promise(resolve => setTimeout(resolve, ms));
-}
-
 // HTTP server for testing and control
 function startHttpServer() {
   const server = http.createServer(async (req, res) => {
@@ -315,6 +701,16 @@ function startHttpServer() {
           }));
           break;
           
+        case '/api/agent-stats':
+          // Latency percentiles recorded inside the agent; ?reset=1 clears them after reading
+          const agentStats = await callAgent({ cmd: 'STATS', reset: parsedUrl.query.reset === '1' }, ['stats']);
+          delete agentStats.type;
+          delete agentStats.data;
+          delete agentStats.id;
+          res.writeHead(200, { 'Content-Type': 'application/json' });
+          res.end(JSON.stringify(agentStats));
+          break;
+          
         case '/api/calibrate':
           // Supports both: ?readX=X&readY=Y&writeX=X&writeY=Y OR ?x=X&y=Y (backwards compatibility)
           const { readX, readY, writeX, writeY, x, y } = parsedUrl.query;
@@ -358,17 +754,37 @@ function startHttpServer() {
               return;
             }
             
+            // {"stream": true} answers with server-sent events: a "delta" per chunk of
+            // progress, "resync" with the whole text if the bridge rewrote it, then "complete"
+            const streaming = Boolean(body.stream);
+            const sendEvent = (event, data) => res.write(`event: ${event}\ndata: ${JSON.stringify(data)}\n\n`);
+            if (streaming) {
+              res.writeHead(200, { 'Content-Type': 'text/event-stream', 'Cache-Control': 'no-cache' });
+            }
+            
             try {
               const response = await sendClipboardRequest('chat', {
                 message: body.message || 'Hello'
-              });
+              }, streaming ? (chunk, accumulated, resync) => {
+                sendEvent(resync ? 'resync' : 'delta', { content: chunk });
+              } : undefined);
               
-              res.writeHead(200, { 'Content-Type': 'application/json' });
-              res.end(JSON.stringify(response));
+              if (streaming) {
+                sendEvent('complete', response);
+                res.end();
+              } else {
+                res.writeHead(200, { 'Content-Type': 'application/json' });
+                res.end(JSON.stringify(response));
+              }
               
             } catch (error) {
-              res.writeHead(500, { 'Content-Type': 'application/json' });
-              res.end(JSON.stringify({ error: error.message }));
+              if (streaming) {
+                sendEvent('error', { error: error.message });
+                res.end();
+              } else {
+                res.writeHead(500, { 'Content-Type': 'application/json' });
+                res.end(JSON.stringify({ error: error.message }));
+              }
             }
           } else {
             res.writeHead(405);
@@ -414,7 +830,7 @@ async function initialize() {
   console.log('[Coordinator] Configuration:', CONFIG);
   
   try {
-    await startJavaAgent();
+    await (CONFIG.agentPort ? attachJavaAgent() : startJavaAgent());
     startHttpServer();
     
     sendJavaCommand({ cmd: 'SET_STATUS', message: 'CCC Ready' });
@@ -434,8 +850,13 @@ process.on('SIGINT', () => {
   console.log('\n[Coordinator] Shutting down...');
   
   if (state.javaAgent) {
-    sendJavaCommand({ cmd: 'RESTORE_CLIPBOARD' });
-    state.javaAgent.kill();
+    // A FLOW restores the clipboard itself, also when ending the session cancels it.
+    // A daemon outlives the coordinator; only a child agent is stopped
+    if (CONFIG.agentPort) {
+      state.javaAgent.end();
+    } else {
+      state.javaAgent.kill();
+    }
   }
   
   process.exit(0);
@@ -0,0 +1,230 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Load driver for ClipboardAgentHeadless and its simulated bridge.
+ *
+ * Starts the headless agent, configures the bridge, pushes N FLOW requests through the
+ * stdin protocol with up to C in flight, and reports throughput and end-to-end latency
+ * (FLOW sent to flow_complete / flow_timeout / busy / error received). Needs no display.
+ *
+ *   javac -d /tmp/ccc src/java-agent/ClipboardAgentHeadless.java src/java-agent/AgentCore.java src/java-agent/EnvelopeScanner.java \
+ *       tests/stress/HeadlessLoadDriver.java
+ *   java -cp /tmp/ccc HeadlessLoadDriver --requests 500 --concurrency 4 \
+ *       --bridge consume=exp:20,respond=lognormal:150:0.5,errorRate=0.01,busyRate=0.005
+ *
+ * Options:
+ *   --requests N        requests to send (default 100)
+ *   --concurrency C     requests in flight at once (default 1)
+ *   --request-size B    request payload chars (default 1024)
+ *   --interval MS       click interval passed to FLOW (default 10)
+ *   --timeout MS        FLOW timeout (default 5000)
+ *   --bridge K=V,...    CONFIGURE_BRIDGE options, e.g. consume, respond, payloadSize,
+ *                       errorRate, dropRate, busyRate, seed
+ *   --script FILE       JSON array of per-request bridge overrides
+ *   --classpath CP      where ClipboardAgentHeadless is (default: this driver's classpath)
+ *   --json              print the report as one JSON object
+ */
+public class HeadlessLoadDriver {
+    private final Map<String, Long> sentAt = new ConcurrentHashMap<>();
+    private final Map<String, Long> latencies = new ConcurrentHashMap<>();
+    private final Map<String, String> outcomes = new ConcurrentHashMap<>();
+    private final CountDownLatch configured = new CountDownLatch(1);
+    private volatile String configureError = null;
+    private final CountDownLatch done;
+    private final Semaphore inFlight;
+    
+    private HeadlessLoadDriver(int requests, int concurrency) {
+        done = new CountDownLatch(requests);
+        inFlight = new Semaphore(concurrency);
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseArgs(args);
+        int requests = Integer.parseInt(options.getOrDefault("requests", "100"));
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "1"));
+        int requestSize = Integer.parseInt(options.getOrDefault("request-size", "1024"));
+        int interval = Integer.parseInt(options.getOrDefault("interval", "10"));
+        int timeout = Integer.parseInt(options.getOrDefault("timeout", "5000"));
+        String classpath = options.getOrDefault("classpath", System.getProperty("java.class.path"));
+        
+        ProcessBuilder builder = new ProcessBuilder(
+            Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+            "-cp", classpath, "ClipboardAgentHeadless");
+        // The agent only simulates the clipboard when it sees no display
+        builder.environment().remove("DISPLAY");
+        Process agent = builder.start();
+        drain(agent.getErrorStream());
+        
+        HeadlessLoadDriver driver = new HeadlessLoadDriver(requests, concurrency);
+        Thread reader = new Thread(() -> driver.readResponses(agent.getInputStream()), "driver-reader");
+        reader.setDaemon(true);
+        reader.start();
+        
+        Writer stdin = new BufferedWriter(new OutputStreamWriter(agent.getOutputStream(), StandardCharsets.UTF_8));
+        stdin.write(configureCommand(options) + "\n");
+        stdin.flush();
+        // Also waits out the agent's startup, which is not part of any request's latency
+        if (!driver.configured.await(30, TimeUnit.SECONDS) || driver.configureError != null) {
+            System.err.println("Bridge configuration failed: " + driver.configureError);
+            agent.destroy();
+            System.exit(1);
+        }
+        
+        String content = filler(requestSize);
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            driver.inFlight.acquire();
+            String id = "r" + i;
+            String requestId = UUID.randomUUID().toString();
+            String request = "{\"type\":\"CCC_REQUEST\",\"id\":\"" + requestId + "\",\"timestamp\":"
+                + System.currentTimeMillis() + ",\"action\":\"chat\",\"payload\":{\"content\":\"" + content
+                + "\"}}|||CCC_END|||";
+            driver.sentAt.put(id, System.nanoTime());
+            stdin.write("{\"cmd\":\"FLOW\",\"id\":\"" + id + "\",\"requestId\":\"" + requestId
+                + "\",\"readX\":500,\"readY\":400,\"writeX\":700,\"writeY\":400"
+                + ",\"interval\":" + interval + ",\"timeout\":" + timeout + ",\"data\":" + quote(request) + "}\n");
+            stdin.flush();
+        }
+        boolean finished = driver.done.await(timeout * (long) requests + 10000, TimeUnit.MILLISECONDS);
+        long elapsed = System.nanoTime() - start;
+        agent.destroy();
+        
+        String report = driver.report(elapsed, finished);
+        System.out.println(options.containsKey("json") ? report : pretty(report));
+    }
+    
+    // Completions are matched by the id the agent echoes; interim replies are ignored
+    private void readResponses(InputStream in) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String type = member(line, "{\"type\":\"");
+                String id = member(line, "\",\"id\":\"");
+                if ("configure".equals(id)) {
+                    if ("error".equals(type)) configureError = member(line, "\"error\":\"");
+                    configured.countDown();
+                    continue;
+                }
+                if (id == null || !sentAt.containsKey(id) || outcomes.containsKey(id)) continue;
+                String outcome;
+                if ("flow_complete".equals(type)) {
+                    outcome = line.contains("\\\"status\\\":\\\"error\\\"") ? "bridgeError" : "ok";
+                } else if ("flow_timeout".equals(type)) {
+                    outcome = "timeout";
+                } else if ("error".equals(type)) {
+                    outcome = "agentError";
+                } else if ("busy".equals(type)) {
+                    outcome = "busy";
+                } else {
+                    continue;
+                }
+                latencies.put(id, System.nanoTime() - sentAt.get(id));
+                outcomes.put(id, outcome);
+                inFlight.release();
+                done.countDown();
+            }
+        } catch (IOException e) {
+            System.err.println("Agent output failed: " + e.getMessage());
+        }
+    }
+    
+    private String report(long elapsedNanos, boolean finished) {
+        long[] sorted = latencies.values().stream().mapToLong(Long::longValue).sorted().toArray();
+        Map<String, Integer> counts = new TreeMap<>();
+        for (String outcome : outcomes.values()) counts.merge(outcome, 1, Integer::sum);
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"requests\":").append(sentAt.size())
+            .append(",\"completed\":").append(sorted.length)
+            .append(",\"finished\":").append(finished);
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            json.append(",\"").append(entry.getKey()).append("\":").append(entry.getValue());
+        }
+        json.append(String.format(Locale.ROOT,
+            ",\"elapsedMs\":%.1f,\"throughputPerSec\":%.2f,\"p50Ms\":%.2f,\"p90Ms\":%.2f,\"p99Ms\":%.2f,\"maxMs\":%.2f}",
+            elapsedNanos / 1e6, sorted.length / (elapsedNanos / 1e9),
+            percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+            sorted.length > 0 ? sorted[sorted.length - 1] / 1e6 : 0.0));
+        return json.toString();
+    }
+    
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) return 0;
+        int rank = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, rank)] / 1e6;
+    }
+    
+    private static String pretty(String json) {
+        return json.substring(1, json.length() - 1).replace("\"", "").replace(",", "\n").replace(":", ": ");
+    }
+    
+    private static String configureCommand(Map<String, String> options) throws IOException {
+        StringBuilder cmd = new StringBuilder("{\"cmd\":\"CONFIGURE_BRIDGE\",\"id\":\"configure\"");
+        String bridge = options.get("bridge");
+        if (bridge != null) {
+            for (String pair : bridge.split(",")) {
+                int eq = pair.indexOf('=');
+                if (eq <= 0) throw new IllegalArgumentException("bad --bridge option: " + pair);
+                String value = pair.substring(eq + 1);
+                cmd.append(",").append(quote(pair.substring(0, eq))).append(":")
+                   .append(value.matches("-?[0-9.]+") ? value : quote(value));
+            }
+        }
+        if (options.containsKey("script")) {
+            cmd.append(",\"script\":").append(new String(Files.readAllBytes(Paths.get(options.get("script"))),
+                StandardCharsets.UTF_8).trim());
+        }
+        return cmd.append("}").toString();
+    }
+    
+    // The agent logs to stderr; keep the pipe from filling up
+    private static void drain(InputStream in) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[8192];
+            try {
+                while (in.read(buffer) >= 0) {
+                    // discard
+                }
+            } catch (IOException e) {
+                // agent exited
+            }
+        }, "driver-stderr");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) throw new IllegalArgumentException("unexpected argument: " + args[i]);
+            String name = args[i].substring(2);
+            boolean flag = i + 1 >= args.length || args[i + 1].startsWith("--");
+            options.put(name, flag ? "" : args[++i]);
+        }
+        return options;
+    }
+    
+    // Value of the string member that starts right after prefix (responses never escape it)
+    private static String member(String line, String prefix) {
+        int start = line.indexOf(prefix);
+        if (start < 0) return null;
+        start += prefix.length();
+        int end = line.indexOf('"', start);
+        return end < 0 ? null : line.substring(start, end);
+    }
+    
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+    
+    private static String filler(int size) {
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size) text.append("load test request text ");
+        text.setLength(size);
+        return text.toString();
+    }
+}
@@ -0,0 +1,227 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Startup probe for the agent: how long a freshly spawned agent takes to be useful and
+ * how much memory it holds once it is.
+ *
+ * Spawns the agent N times. Each run sends PING straight away and times, from spawn,
+ * the ready event and the first pong; then GET_CLIPBOARD and SAVE_MOUSE, whose answers
+ * mean the clipboard and Robot are up (warm); then an optional SET/GET_CLIPBOARD round
+ * trip of a payload. Resident memory (VmRSS, and the VmHWM peak) is read from
+ * /proc/<pid>/status at that point, so it needs Linux. Medians are reported against
+ * the 200MB RSS target.
+ *
+ *   java tests/stress/StartupProbe.java --runs 10 --jar src/java-agent/agent.jar
+ *   java tests/stress/StartupProbe.java --runs 10 --jar src/java-agent/agent.jar \
+ *       --jvm-opts "-XX:SharedArchiveFile=src/java-agent/agent.jsa"
+ *
+ * Options:
+ *   --runs N            agents to start, one after another (default 10)
+ *   --jar PATH          agent jar to run (default src/java-agent/agent.jar)
+ *   --classpath CP      run --main from this classpath instead of a jar
+ *   --main CLASS        main class with --classpath (default ClipboardAgentHeadless)
+ *   --java PATH         JVM to start (default: the one running the probe)
+ *   --jvm-opts "..."    extra JVM options, space separated
+ *   --payload-size B    clipboard round trip of B chars before sampling memory (default 0)
+ *   --json              print the report as one JSON object
+ */
+public class StartupProbe {
+    private static final double RSS_TARGET_MB = 200;
+    
+    private final Map<String, Long> seenAt = new ConcurrentHashMap<>();
+    private final CountDownLatch pong = new CountDownLatch(1);
+    private final CountDownLatch warm = new CountDownLatch(2);
+    private final CountDownLatch payload = new CountDownLatch(2);
+    private final long spawnedAt;
+    
+    private StartupProbe(long spawnedAt) {
+        this.spawnedAt = spawnedAt;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseArgs(args);
+        int runs = Integer.parseInt(options.getOrDefault("runs", "10"));
+        int payloadSize = Integer.parseInt(options.getOrDefault("payload-size", "0"));
+        
+        List<String> command = new ArrayList<>();
+        command.add(options.getOrDefault("java", Paths.get(System.getProperty("java.home"), "bin", "java").toString()));
+        String jvmOpts = options.getOrDefault("jvm-opts", "").trim();
+        if (!jvmOpts.isEmpty()) command.addAll(Arrays.asList(jvmOpts.split("\\s+")));
+        if (options.containsKey("classpath")) {
+            command.add("-cp");
+            command.add(options.get("classpath"));
+            command.add(options.getOrDefault("main", "ClipboardAgentHeadless"));
+        } else {
+            command.add("-jar");
+            command.add(options.getOrDefault("jar", "src/java-agent/agent.jar"));
+        }
+        
+        Map<String, double[]> samples = new LinkedHashMap<>();
+        for (String metric : new String[] {"readyMs", "pongMs", "warmMs", "rssMb", "hwmMb"}) {
+            samples.put(metric, new double[runs]);
+        }
+        for (int run = 0; run < runs; run++) {
+            Map<String, Double> result = probe(command, payloadSize);
+            for (Map.Entry<String, double[]> metric : samples.entrySet()) {
+                metric.getValue()[run] = result.getOrDefault(metric.getKey(), Double.NaN);
+            }
+        }
+        
+        StringBuilder json = new StringBuilder("{\"runs\":").append(runs).append(",\"payloadSize\":").append(payloadSize);
+        for (Map.Entry<String, double[]> metric : samples.entrySet()) {
+            double[] sorted = metric.getValue().clone();
+            Arrays.sort(sorted);
+            json.append(String.format(Locale.ROOT, ",\"%s\":%.1f,\"%sMax\":%.1f",
+                metric.getKey(), median(sorted), metric.getKey(), sorted[sorted.length - 1]));
+        }
+        double rss = median(sortedCopy(samples.get("rssMb")));
+        json.append(String.format(Locale.ROOT, ",\"rssTargetMb\":%.0f,\"underTarget\":%b}", RSS_TARGET_MB, rss < RSS_TARGET_MB));
+        System.out.println(options.containsKey("json") ? json : pretty(json.toString()));
+    }
+    
+    // One agent from spawn to memory sample; a step that never answers leaves its metric out
+    private static Map<String, Double> probe(List<String> command, int payloadSize) throws Exception {
+        ProcessBuilder builder = new ProcessBuilder(command);
+        long start = System.nanoTime();
+        Process agent = builder.start();
+        StartupProbe probe = new StartupProbe(start);
+        drain(agent.getErrorStream());
+        Thread reader = new Thread(() -> probe.readResponses(agent.getInputStream()), "probe-reader");
+        reader.setDaemon(true);
+        reader.start();
+        
+        Map<String, Double> result = new HashMap<>();
+        Writer stdin = new BufferedWriter(new OutputStreamWriter(agent.getOutputStream(), StandardCharsets.UTF_8));
+        try {
+            send(stdin, "{\"cmd\":\"PING\",\"id\":\"ping\"}");
+            if (probe.pong.await(30, TimeUnit.SECONDS)) {
+                send(stdin, "{\"cmd\":\"GET_CLIPBOARD\",\"id\":\"clipboard\"}");
+                send(stdin, "{\"cmd\":\"SAVE_MOUSE\",\"id\":\"mouse\"}");
+                probe.warm.await(30, TimeUnit.SECONDS);
+                if (payloadSize > 0) {
+                    send(stdin, "{\"cmd\":\"SET_CLIPBOARD\",\"id\":\"set\",\"data\":\"" + filler(payloadSize) + "\"}");
+                    send(stdin, "{\"cmd\":\"GET_CLIPBOARD\",\"id\":\"get\"}");
+                    probe.payload.await(30, TimeUnit.SECONDS);
+                }
+                result.putAll(memory(agent.pid()));
+            }
+        } finally {
+            agent.destroy();
+            agent.waitFor(10, TimeUnit.SECONDS);
+        }
+        probe.elapsed("ready", result, "readyMs");
+        probe.elapsed("ping", result, "pongMs");
+        probe.elapsed("clipboard", result, "warmMs");
+        probe.elapsed("mouse", result, "warmMs");
+        return result;
+    }
+    
+    // Replies are matched by the id the agent echoes; ready carries none
+    private void readResponses(InputStream in) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                long now = System.nanoTime();
+                String type = member(line, "{\"type\":\"");
+                String id = "ready".equals(type) ? "ready" : member(line, "\",\"id\":\"");
+                if (id == null || seenAt.putIfAbsent(id, now) != null) continue;
+                switch (id) {
+                    case "ping": pong.countDown(); break;
+                    case "clipboard": case "mouse": warm.countDown(); break;
+                    case "set": case "get": payload.countDown(); break;
+                    default: break;
+                }
+            }
+        } catch (IOException e) {
+            // agent killed at the end of the run
+        }
+    }
+    
+    // Time from spawn to the reply with this id; a metric fed twice keeps the later one
+    private void elapsed(String id, Map<String, Double> result, String metric) {
+        Long at = seenAt.get(id);
+        if (at != null) result.merge(metric, (at - spawnedAt) / 1e6, Math::max);
+    }
+    
+    private static Map<String, Double> memory(long pid) throws IOException {
+        Map<String, Double> memory = new HashMap<>();
+        for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(pid), "status"))) {
+            // "VmRSS:     51234 kB"
+            if (line.startsWith("VmRSS:")) memory.put("rssMb", kilobytes(line) / 1024.0);
+            if (line.startsWith("VmHWM:")) memory.put("hwmMb", kilobytes(line) / 1024.0);
+        }
+        return memory;
+    }
+    
+    private static long kilobytes(String line) {
+        return Long.parseLong(line.replaceAll("[^0-9]", ""));
+    }
+    
+    private static void send(Writer stdin, String command) throws IOException {
+        stdin.write(command + "\n");
+        stdin.flush();
+    }
+    
+    private static double[] sortedCopy(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+    
+    // NaN (a step that never answered) sorts last, so it only shows in the median if most runs failed
+    private static double median(double[] sorted) {
+        return sorted[(sorted.length - 1) / 2];
+    }
+    
+    private static String pretty(String json) {
+        return json.substring(1, json.length() - 1).replace("\"", "").replace(",", "\n").replace(":", ": ");
+    }
+    
+    // The agent logs to stderr; keep the pipe from filling up
+    private static void drain(InputStream in) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[8192];
+            try {
+                while (in.read(buffer) >= 0) {
+                    // discard
+                }
+            } catch (IOException e) {
+                // agent exited
+            }
+        }, "probe-stderr");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) throw new IllegalArgumentException("unexpected argument: " + args[i]);
+            String name = args[i].substring(2);
+            boolean flag = i + 1 >= args.length || args[i + 1].startsWith("--");
+            options.put(name, flag ? "" : args[++i]);
+        }
+        return options;
+    }
+    
+    // Value of the string member that starts right after prefix (responses never escape it)
+    private static String member(String line, String prefix) {
+        int start = line.indexOf(prefix);
+        if (start < 0) return null;
+        start += prefix.length();
+        int end = line.indexOf('"', start);
+        return end < 0 ? null : line.substring(start, end);
+    }
+    
+    private static String filler(int size) {
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size) text.append("startup probe payload ");
+        text.setLength(size);
+        return text.toString();
+    }
+}
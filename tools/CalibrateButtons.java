@@ -1,8 +1,43 @@
 import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.imageio.ImageIO;
 
+/**
+ * Finds the READ and WRITE buttons and prints the coordinator's calibration command.
+ *
+ *   java CalibrateButtons                 hover each button through a countdown
+ *   java CalibrateButtons --auto          find both buttons on screen by their colours
+ *
+ * --auto options:
+ *   --push [URL]          send the result to the coordinator (default http://localhost:5555)
+ *   --image FILE          search a saved screenshot instead of the screens
+ *   --read-color #RRGGBB  READ button colour (default #28a745, the mock UI's green)
+ *   --write-color #RRGGBB WRITE button colour (default #17a2b8, the mock UI's teal)
+ *   --tolerance N         largest per-channel difference that still matches (default 40)
+ */
 public class CalibrateButtons {
+    private static final int READ = 1;
+    private static final int WRITE = 2;
+    // Screenshots are first searched at 1/STEP of their resolution
+    private static final int STEP = 4;
+    
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--auto".equals(args[0])) {
+            automatic(args);
+            return;
+        }
+        
         System.out.println("================================");
         System.out.println("CCC BUTTON CALIBRATION TOOL");
         System.out.println("================================\n");
@@ -19,6 +54,7 @@ public class CalibrateButtons {
         System.out.println("3. When ready, press ENTER and you'll have 10 seconds to:");
         System.out.println("   - Move your mouse to the CENTER of the READ CLIPBOARD button");
         System.out.println("   - Keep it there and wait");
+        System.out.println("(Or run with --auto to find both buttons without hovering)");
         System.out.println("\nPress ENTER when ready...");
         scanner.nextLine();
         
@@ -51,6 +87,12 @@ public class CalibrateButtons {
         writeButtonPos = MouseInfo.getPointerInfo().getLocation();
         System.out.println("\n✓ WRITE Button position captured: X=" + writeButtonPos.x + ", Y=" + writeButtonPos.y);
         
+        printResult(readButtonPos, writeButtonPos);
+        
+        scanner.close();
+    }
+    
+    private static void printResult(Point readButtonPos, Point writeButtonPos) {
         // Display results
         System.out.println("\n================================");
         System.out.println("CALIBRATION COMPLETE!");
@@ -70,7 +112,313 @@ public class CalibrateButtons {
                           readButtonPos.x, readButtonPos.y, writeButtonPos.x, writeButtonPos.y);
         
         System.out.println("\n✓ Copy and run one of the commands above to calibrate CCC!");
+    }
+    
+    /**
+     * --auto: one screenshot per monitor, searched for a READ-coloured and a
+     * WRITE-coloured button side by side. Each screenshot is first classified at
+     * 1/STEP resolution, in bands of rows spread over the fork/join pool; solid,
+     * button-shaped patches of either colour are then collected from that coarse map
+     * and their edges refined on the full-resolution pixels. The WRITE button turns
+     * green while a response is pending, so a green pair also counts, the left one
+     * being READ. With no pair but one patch of READ colour covering most of a
+     * screen (bridge.js's full-screen overlay), its centre is used for both.
+     */
+    private static void automatic(String[] args) throws Exception {
+        String pushUrl = null;
+        String image = null;
+        int readColor = 0x28a745;
+        int writeColor = 0x17a2b8;
+        int tolerance = 40;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--push":
+                    pushUrl = i + 1 < args.length && !args[i + 1].startsWith("--") ? args[++i] : "http://localhost:5555";
+                    break;
+                case "--image": image = args[++i]; break;
+                case "--read-color": readColor = parseColor(args[++i]); break;
+                case "--write-color": writeColor = parseColor(args[++i]); break;
+                case "--tolerance": tolerance = Integer.parseInt(args[++i]); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
         
-        scanner.close();
+        long start = System.nanoTime();
+        List<Rectangle> bounds = new ArrayList<>();
+        List<BufferedImage> shots = new ArrayList<>();
+        if (image != null) {
+            BufferedImage shot = ImageIO.read(new File(image));
+            if (shot == null) throw new IllegalArgumentException("Not an image: " + image);
+            bounds.add(new Rectangle(0, 0, shot.getWidth(), shot.getHeight()));
+            shots.add(shot);
+        } else {
+            Robot robot = new Robot();
+            for (GraphicsDevice screen : GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices()) {
+                Rectangle screenBounds = screen.getDefaultConfiguration().getBounds();
+                bounds.add(screenBounds);
+                shots.add(robot.createScreenCapture(screenBounds));
+            }
+        }
+        long captured = System.nanoTime();
+        
+        Point[] found = null;
+        for (int i = 0; i < shots.size() && found == null; i++) {
+            BufferedImage shot = shots.get(i);
+            found = locate(pixels(shot), shot.getWidth(), shot.getHeight(), readColor, writeColor, tolerance);
+            if (found != null) {
+                for (Point point : found) point.translate(bounds.get(i).x, bounds.get(i).y);
+            }
+        }
+        long end = System.nanoTime();
+        System.out.printf(Locale.ROOT, "Searched %d screen(s) in %.0fms (capture %.0fms, match %.0fms)%n",
+            shots.size(), (end - start) / 1e6, (captured - start) / 1e6, (end - captured) / 1e6);
+        if (found == null) {
+            System.out.println("No READ/WRITE buttons found. Is the mock UI or bridge visible? "
+                + "Check --read-color/--write-color, or run without --auto to hover them.");
+            System.exit(1);
+        }
+        
+        printResult(found[0], found[1]);
+        if (pushUrl != null) push(pushUrl, found[0], found[1]);
+    }
+    
+    // READ and WRITE centres in shot coordinates, or null
+    static Point[] locate(int[] pixels, int width, int height, int readColor, int writeColor, int tolerance) {
+        int coarseWidth = width / STEP;
+        int coarseHeight = height / STEP;
+        byte[] map = new byte[coarseWidth * coarseHeight];
+        ForkJoinPool.commonPool().invoke(new Classify(pixels, width, map, coarseWidth, 0, coarseHeight,
+            new int[] {readColor, writeColor}, tolerance));
+        
+        List<Patch> patches = patches(map, coarseWidth, coarseHeight);
+        Patch read = null;
+        Patch write = null;
+        long best = Long.MAX_VALUE;
+        for (Patch left : patches) {
+            if (left.color != READ || !left.buttonShaped(width, height)) continue;
+            for (Patch right : patches) {
+                if (right == left || !right.buttonShaped(width, height) || right.left <= left.right) continue;
+                long penalty = left.pairPenalty(right);
+                if (penalty < best) {
+                    best = penalty;
+                    read = left;
+                    write = right;
+                }
+            }
+        }
+        if (read != null) {
+            read.refine(pixels, width, height, read.color == READ ? readColor : writeColor, tolerance);
+            write.refine(pixels, width, height, write.color == READ ? readColor : writeColor, tolerance);
+            return new Point[] {read.center(), write.center()};
+        }
+        
+        for (Patch patch : patches) {
+            if (patch.color == READ && (long) patch.cells * STEP * STEP * 2 > (long) width * height) {
+                return new Point[] {patch.center(), patch.center()};
+            }
+        }
+        return null;
+    }
+    
+    // Classifies the centre pixel of each STEP x STEP block; splits into bands of rows for the pool
+    static final class Classify extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int BAND = 16;
+        private final int[] pixels;
+        private final int width;
+        private final byte[] map;
+        private final int coarseWidth;
+        private final int from;
+        private final int to;
+        private final int[] colors;
+        private final int tolerance;
+        
+        Classify(int[] pixels, int width, byte[] map, int coarseWidth, int from, int to, int[] colors, int tolerance) {
+            this.pixels = pixels;
+            this.width = width;
+            this.map = map;
+            this.coarseWidth = coarseWidth;
+            this.from = from;
+            this.to = to;
+            this.colors = colors;
+            this.tolerance = tolerance;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from > BAND) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Classify(pixels, width, map, coarseWidth, from, middle, colors, tolerance),
+                          new Classify(pixels, width, map, coarseWidth, middle, to, colors, tolerance));
+                return;
+            }
+            for (int cy = from; cy < to; cy++) {
+                int row = (cy * STEP + STEP / 2) * width + STEP / 2;
+                for (int cx = 0; cx < coarseWidth; cx++) {
+                    map[cy * coarseWidth + cx] = (byte) nearest(pixels[row + cx * STEP], colors, tolerance);
+                }
+            }
+        }
+    }
+    
+    // 1 + index of the closest colour within tolerance on every channel, or 0
+    private static int nearest(int rgb, int[] colors, int tolerance) {
+        int match = 0;
+        int best = Integer.MAX_VALUE;
+        for (int i = 0; i < colors.length; i++) {
+            int red = Math.abs(((rgb >> 16) & 0xFF) - ((colors[i] >> 16) & 0xFF));
+            int green = Math.abs(((rgb >> 8) & 0xFF) - ((colors[i] >> 8) & 0xFF));
+            int blue = Math.abs((rgb & 0xFF) - (colors[i] & 0xFF));
+            if (Math.max(red, Math.max(green, blue)) > tolerance) continue;
+            if (red + green + blue < best) {
+                best = red + green + blue;
+                match = i + 1;
+            }
+        }
+        return match;
+    }
+    
+    private static boolean matches(int rgb, int color, int tolerance) {
+        return nearest(rgb, new int[] {color}, tolerance) != 0;
+    }
+    
+    // Connected runs of one colour in the coarse map (4-neighbour flood fill)
+    private static List<Patch> patches(byte[] map, int coarseWidth, int coarseHeight) {
+        List<Patch> patches = new ArrayList<>();
+        boolean[] seen = new boolean[map.length];
+        int[] stack = new int[map.length];
+        for (int start = 0; start < map.length; start++) {
+            if (map[start] == 0 || seen[start]) continue;
+            Patch patch = new Patch(map[start]);
+            int size = 0;
+            stack[size++] = start;
+            seen[start] = true;
+            while (size > 0) {
+                int cell = stack[--size];
+                int cx = cell % coarseWidth;
+                int cy = cell / coarseWidth;
+                patch.add(cx, cy);
+                if (cx > 0 && map[cell - 1] == patch.color && !seen[cell - 1]) { seen[cell - 1] = true; stack[size++] = cell - 1; }
+                if (cx + 1 < coarseWidth && map[cell + 1] == patch.color && !seen[cell + 1]) { seen[cell + 1] = true; stack[size++] = cell + 1; }
+                if (cy > 0 && map[cell - coarseWidth] == patch.color && !seen[cell - coarseWidth]) {
+                    seen[cell - coarseWidth] = true;
+                    stack[size++] = cell - coarseWidth;
+                }
+                if (cy + 1 < coarseHeight && map[cell + coarseWidth] == patch.color && !seen[cell + coarseWidth]) {
+                    seen[cell + coarseWidth] = true;
+                    stack[size++] = cell + coarseWidth;
+                }
+            }
+            patches.add(patch);
+        }
+        return patches;
+    }
+    
+    /** One patch of a button colour: its bounds in full-resolution pixels, right and bottom exclusive. */
+    static final class Patch {
+        final int color;
+        int left = Integer.MAX_VALUE;
+        int top = Integer.MAX_VALUE;
+        int right;
+        int bottom;
+        int cells;
+        
+        Patch(int color) {
+            this.color = color;
+        }
+        
+        void add(int cx, int cy) {
+            left = Math.min(left, cx * STEP);
+            top = Math.min(top, cy * STEP);
+            right = Math.max(right, (cx + 1) * STEP);
+            bottom = Math.max(bottom, (cy + 1) * STEP);
+            cells++;
+        }
+        
+        int width() {
+            return right - left;
+        }
+        
+        int height() {
+            return bottom - top;
+        }
+        
+        Point center() {
+            return new Point((left + right) / 2, (top + bottom) / 2);
+        }
+        
+        // Wider than tall, mostly filled (the label and rounded corners are not), and not a whole screen
+        boolean buttonShaped(int screenWidth, int screenHeight) {
+            int w = width();
+            int h = height();
+            return h >= 24 && w >= h && w <= 8 * h && w < screenWidth / 2 && h < screenHeight / 4
+                && cells * STEP * STEP >= 0.6 * w * h;
+        }
+        
+        // How unlike a READ/WRITE pair this and other are: same row, same size, close together, WRITE not green
+        long pairPenalty(Patch other) {
+            int rowOffset = Math.abs((top + bottom) - (other.top + other.bottom)) / 2;
+            if (rowOffset > Math.max(height(), other.height()) / 2) return Long.MAX_VALUE;
+            if (Math.abs(height() - other.height()) * 4 > Math.max(height(), other.height())) return Long.MAX_VALUE;
+            long penalty = rowOffset + Math.abs(height() - other.height()) + Math.abs(width() - other.width()) / 2
+                + (other.left - right) / 4;
+            return other.color == WRITE ? penalty : penalty + 100_000;
+        }
+        
+        // Moves each edge to the last matching pixel within a coarse step, away from the label
+        void refine(int[] pixels, int width, int height, int rgb, int tolerance) {
+            int row = (top + bottom) / 2;
+            int column = left + width() / 8;
+            int newLeft = left;
+            while (newLeft > 0 && left - newLeft < STEP && matches(pixels[row * width + newLeft - 1], rgb, tolerance)) newLeft--;
+            while (newLeft < right && !matches(pixels[row * width + newLeft], rgb, tolerance)) newLeft++;
+            int newRight = right;
+            while (newRight < width && newRight - right < STEP && matches(pixels[row * width + newRight], rgb, tolerance)) newRight++;
+            while (newRight > newLeft && !matches(pixels[row * width + newRight - 1], rgb, tolerance)) newRight--;
+            int newTop = top;
+            while (newTop > 0 && top - newTop < STEP && matches(pixels[(newTop - 1) * width + column], rgb, tolerance)) newTop--;
+            while (newTop < bottom && !matches(pixels[newTop * width + column], rgb, tolerance)) newTop++;
+            int newBottom = bottom;
+            while (newBottom < height && newBottom - bottom < STEP && matches(pixels[newBottom * width + column], rgb, tolerance)) newBottom++;
+            while (newBottom > newTop && !matches(pixels[(newBottom - 1) * width + column], rgb, tolerance)) newBottom--;
+            if (newRight > newLeft && newBottom > newTop) {
+                left = newLeft;
+                right = newRight;
+                top = newTop;
+                bottom = newBottom;
+            }
+        }
+    }
+    
+    // The screenshot's pixels as 0xRRGGBB ints, straight from its raster when it has the usual
+    // layout (Robot's captures do); anything else is redrawn, far faster than getRGB
+    private static int[] pixels(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_RGB
+                || image.getRaster().getDataBuffer().getSize() != image.getWidth() * image.getHeight()) {
+            BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics graphics = converted.getGraphics();
+            graphics.drawImage(image, 0, 0, null);
+            graphics.dispose();
+            image = converted;
+        }
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+    
+    private static int parseColor(String text) {
+        return Integer.parseInt(text.startsWith("#") ? text.substring(1) : text, 16);
+    }
+    
+    private static void push(String baseUrl, Point read, Point write) throws Exception {
+        URL url = new URL(String.format("%s/api/calibrate?readX=%d&readY=%d&writeX=%d&writeY=%d",
+            baseUrl, read.x, read.y, write.x, write.y));
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(2000);
+        connection.setReadTimeout(2000);
+        int status = connection.getResponseCode();
+        try (InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            Scanner reply = new Scanner(body, "UTF-8").useDelimiter("\\A");
+            System.out.println("\nCoordinator (" + status + "): " + (reply.hasNext() ? reply.next() : ""));
+        }
+        if (status >= 400) System.exit(1);
     }
-}
\ No newline at end of file
+}
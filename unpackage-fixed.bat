@@ -27,6 +27,8 @@ echo Files extracted:
 echo - package.json
 echo - config.json
 echo - src/java-agent/ClipboardAgent.java
+echo - src/java-agent/AgentCore.java
+echo - src/java-agent/EnvelopeScanner.java
 echo - src/node-server/coordinator-demo.js
 echo - src/browser-bridge/bridge-api.js
 echo - run-prod.bat